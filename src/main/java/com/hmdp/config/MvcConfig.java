@@ -1,7 +1,10 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.LoginTokenRefresher;
+import com.hmdp.utils.LoginUserCache;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SignedTokenCodec;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -15,6 +18,15 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private LoginUserCache loginUserCache;
+
+    @Resource
+    private LoginTokenRefresher loginTokenRefresher;
+
+    @Resource
+    private SignedTokenCodec signedTokenCodec;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         // 登录拦截器
@@ -29,7 +41,7 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/voucher/**"
                 ).order(1);
         // token刷新的拦截器
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
+        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate, loginUserCache, loginTokenRefresher, signedTokenCodec))
                 .addPathPatterns("/**").order(0);
     }
 
@@ -1,10 +1,19 @@
 package com.hmdp.controller;
 
 
+import com.hmdp.dto.Result;
+import com.hmdp.entity.BlogComments;
+import com.hmdp.service.IBlogCommentsService;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.annotation.Resource;
+
 /**
  * <p>
  *  前端控制器
@@ -17,4 +26,40 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/blog-comments")
 public class BlogCommentsController {
 
+    @Resource
+    private IBlogCommentsService blogCommentsService;
+
+    @PostMapping
+    public Result saveComment(@RequestBody BlogComments comment) {
+        return blogCommentsService.saveComment(comment);
+    }
+
+    /**
+     * 按id游标分页查询笔记的一级评论，最新的在前
+     *
+     * @param blogId 笔记id
+     * @param lastId 上一页最后一条评论的id，第一页不传
+     */
+    @GetMapping("/of/blog")
+    public Result queryComments(
+            @RequestParam("blogId") Long blogId,
+            @RequestParam(value = "lastId", required = false) Long lastId) {
+        return blogCommentsService.queryComments(blogId, lastId);
+    }
+
+    /**
+     * 按id游标分页查询一级评论下的回复，最早的在前
+     *
+     * @param blogId   笔记id
+     * @param parentId 一级评论id
+     * @param lastId   上一页最后一条回复的id，第一页不传
+     */
+    @GetMapping("/replies")
+    public Result queryReplies(
+            @RequestParam("blogId") Long blogId,
+            @RequestParam("parentId") Long parentId,
+            @RequestParam(value = "lastId", required = false) Long lastId) {
+        return blogCommentsService.queryReplies(blogId, parentId, lastId);
+    }
+
 }
@@ -1,19 +1,16 @@
 package com.hmdp.controller;
 
 
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.User;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IUserService;
-import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -42,14 +39,7 @@ public class BlogController {
 
     @GetMapping("/of/me")
     public Result queryMyBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
-        // 获取登录用户
-        UserDTO user = UserHolder.getUser();
-        // 根据用户查询
-        Page<Blog> page = blogService.query()
-                .eq("user_id", user.getId()).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        return Result.ok(records);
+        return blogService.queryMyBlog(current);
     }
 
     @GetMapping("/hot")
@@ -71,12 +61,31 @@ public class BlogController {
     public Result queryBlogByUserId(
             @RequestParam(value = "current", defaultValue = "1") Integer current,
             @RequestParam("id") Long id) {
-        // 根据用户查询
-        Page<Blog> page = blogService.query()
-                .eq("user_id", id).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        return Result.ok(records);
+        return blogService.queryBlogByUserId(current, id);
+    }
+
+    /**
+     * 按发布时间游标分页查询用户的笔记，不查询总数
+     *
+     * @param id       用户id
+     * @param lastTime 上一页最后一篇笔记的发布时间（毫秒），第一页不传
+     * @param lastId   上一页最后一篇笔记的id，第一页不传
+     */
+    @GetMapping("/of/user/scroll")
+    public Result scrollBlogByUserId(
+            @RequestParam("id") Long id,
+            @RequestParam(value = "lastTime", required = false) Long lastTime,
+            @RequestParam(value = "lastId", required = false) Long lastId) {
+        return blogService.scrollBlogByUserId(id, lastTime, lastId);
+    }
+
+    @GetMapping("/of/me/scroll")
+    public Result scrollMyBlog(
+            @RequestParam(value = "lastTime", required = false) Long lastTime,
+            @RequestParam(value = "lastId", required = false) Long lastId) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        return blogService.scrollBlogByUserId(user.getId(), lastTime, lastId);
     }
 
     @GetMapping("/of/follow")
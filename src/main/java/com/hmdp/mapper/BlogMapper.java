@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,19 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    /**
+     * 批量增加点赞数
+     *
+     * @param deltas 笔记id到点赞数增量的映射，不能为空
+     * @return
+     */
+    int incrLiked(@Param("deltas") Map<Long, Long> deltas);
+
+    /**
+     * 批量增加评论数
+     *
+     * @param deltas 笔记id到评论数增量的映射，不能为空
+     * @return
+     */
+    int incrComments(@Param("deltas") Map<Long, Long> deltas);
 }
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Follow;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,15 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface FollowMapper extends BaseMapper<Follow> {
 
+    /**
+     * 按粉丝id游标分页查询粉丝，走 idx_follow_user 覆盖索引
+     *
+     * @param followUserId 被关注的用户id
+     * @param lastUserId   上一页最后一个粉丝id，第一页传0
+     * @param limit        每页数量
+     * @return 粉丝id，升序
+     */
+    List<Long> queryFollowerIds(@Param("followUserId") Long followUserId,
+                                @Param("lastUserId") Long lastUserId,
+                                @Param("limit") int limit);
 }
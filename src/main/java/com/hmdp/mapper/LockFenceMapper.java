@@ -0,0 +1,57 @@
+package com.hmdp.mapper;
+
+import org.apache.ibatis.annotations.Param;
+
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ *  分布式锁栅栏令牌 Mapper 接口
+ * </p>
+ */
+public interface LockFenceMapper {
+
+    /**
+     * 初始化锁的令牌记录，已存在时忽略
+     *
+     * @param name 锁的名称
+     * @return
+     */
+    int insertIgnore(@Param("name") String name);
+
+    /**
+     * 推进锁的令牌，令牌比已记录的令牌小时不更新。该行的行锁会持有到事务结束
+     *
+     * @param name  锁的名称
+     * @param token 持锁时拿到的令牌
+     * @return 1代表令牌有效，0代表令牌已过期
+     */
+    int advance(@Param("name") String name, @Param("token") long token);
+
+    /**
+     * 推进令牌，只有令牌比已记录的大时才更新，用于保证同一个令牌的操作只执行一次
+     *
+     * @param name  名称
+     * @param token 令牌
+     * @return 1代表第一次使用该令牌，0代表已经使用过
+     */
+    int advanceIfNewer(@Param("name") String name, @Param("token") long token);
+
+    /**
+     * 查询已记录的令牌
+     *
+     * @param name 名称
+     * @return 令牌，没有记录时返回null
+     */
+    Long selectToken(@Param("name") String name);
+
+    /**
+     * 删除长期没有更新的令牌记录
+     *
+     * @param prefix 锁名称的前缀
+     * @param before 最后更新时间早于该时间的删除
+     * @param limit  最多删除的条数
+     * @return 删除的条数
+     */
+    int deleteExpired(@Param("prefix") String prefix, @Param("before") LocalDateTime before, @Param("limit") int limit);
+}
@@ -13,4 +13,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface UserMapper extends BaseMapper<User> {
 
+    /**
+     * 新增用户，手机号已存在时忽略
+     *
+     * @param user
+     * @return 1代表新增成功，0代表手机号已存在
+     */
+    int insertIgnore(User user);
 }
@@ -26,4 +26,10 @@ public interface IBlogService extends IService<Blog> {
 
     Result queryBlogOfFollow(Long max, Integer offset);
 
+    Result queryMyBlog(Integer current);
+
+    Result queryBlogByUserId(Integer current, Long userId);
+
+    Result scrollBlogByUserId(Long userId, Long lastTime, Long lastId);
+
 }
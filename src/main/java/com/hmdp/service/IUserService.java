@@ -3,9 +3,12 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -17,12 +20,22 @@ import javax.servlet.http.HttpSession;
  */
 public interface IUserService extends IService<User> {
 
-    Result sendCode(String phone, HttpSession session);
+    Result sendCode(String phone, String clientIp, HttpSession session);
 
     Result login(LoginFormDTO loginForm, HttpSession session);
 
+    Result logout(String token);
+
     Result sign();
 
     Result signCount();
 
+    /**
+     * 批量查询用户信息，优先走缓存
+     *
+     * @param ids 用户id
+     * @return 用户id到用户信息的映射，不存在的用户不包含在内
+     */
+    Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids);
+
 }
@@ -16,6 +16,6 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    void createVoucherOrder(VoucherOrder voucherOrder, String lockName, long fencingToken);
 
 }
@@ -1,11 +1,31 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
 import com.hmdp.entity.BlogComments;
 import com.hmdp.mapper.BlogCommentsMapper;
 import com.hmdp.service.IBlogCommentsService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.BlogCounter;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +37,144 @@ import org.springframework.stereotype.Service;
 @Service
 public class BlogCommentsServiceImpl extends ServiceImpl<BlogCommentsMapper, BlogComments> implements IBlogCommentsService {
 
+    /**
+     * 禁止查看的评论状态
+     */
+    private static final int STATUS_HIDDEN = 2;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private BlogCounter blogCounter;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Override
+    public Result saveComment(BlogComments comment) {
+        // 1、校验内容
+        if (StrUtil.isBlank(comment.getContent())) {
+            return Result.fail("评论内容不能为空！");
+        }
+        // 1.1、校验笔记存在，走笔记的逻辑过期缓存（不存在的id缓存空值）
+        Long blogId = comment.getBlogId();
+        if (blogId == null || cacheClient.queryWithLogicalExpireOrLoad(RedisConstants.CACHE_BLOG_KEY, blogId, Blog.class,
+                blogService::getById, RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES) == null) {
+            return Result.fail("笔记不存在！");
+        }
+        // 2、回复必须挂在同一篇笔记的一级评论下，回复的回复也归到同一个一级评论，只记录回复的评论id
+        long parentId = comment.getParentId() == null ? 0 : comment.getParentId();
+        long answerId = comment.getAnswerId() == null ? parentId : comment.getAnswerId();
+        if (parentId != 0) {
+            BlogComments parent = query().select("id").eq("id", parentId)
+                    .eq("blog_id", blogId).eq("parent_id", 0).one();
+            if (parent == null) {
+                return Result.fail("回复的评论不存在！");
+            }
+        }
+        // 2.1、回复的评论是一级评论本身，或者同一个一级评论下的回复；一级评论不回复任何评论
+        if (answerId != parentId) {
+            BlogComments answer = parentId == 0 ? null : query().select("id").eq("id", answerId)
+                    .eq("blog_id", blogId).eq("parent_id", parentId).one();
+            if (answer == null) {
+                return Result.fail("回复的评论不存在！");
+            }
+        }
+        // 3、保存评论
+        comment.setId(null);
+        comment.setUserId(UserHolder.getUser().getId());
+        comment.setParentId(parentId);
+        comment.setAnswerId(answerId);
+        comment.setLiked(0);
+        comment.setStatus(false);
+        save(comment);
+        // 4、评论数只在redis中累加，异步落库
+        blogCounter.incrComments(blogId, 1);
+        // 5、一级评论会出现在第一页，删除第一页的缓存并推进令牌，删除前已经查询数据库的读取不会再写回旧的第一页
+        if (parentId == 0) {
+            cacheClient.deleteWithFence(RedisConstants.CACHE_COMMENTS_KEY + blogId);
+        }
+        return Result.ok(comment.getId());
+    }
+
+    @Override
+    public Result queryComments(Long blogId, Long lastId) {
+        List<BlogComments> comments;
+        if (lastId == null) {
+            // 1、第一页所有人看到的都一样，走缓存，热门笔记的评论区不会每次都查询数据库
+            String key = RedisConstants.CACHE_COMMENTS_KEY + blogId;
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (json != null) {
+                comments = JSONUtil.toList(JSONUtil.parseArray(json), BlogComments.class);
+            } else {
+                // 查询数据库之前读取令牌，查询期间有新的一级评论（令牌被推进）时不写入
+                long token = cacheClient.getFenceToken(key);
+                comments = queryPage(blogId, 0L, null);
+                // 空列表也缓存，防止缓存穿透
+                cacheClient.setWithFence(key, comments, token, RedisConstants.CACHE_COMMENTS_TTL, TimeUnit.MINUTES);
+            }
+        } else {
+            // 2、后续页按id游标查询，走 idx_blog_parent 索引，没有offset
+            comments = queryPage(blogId, 0L, lastId);
+        }
+        return Result.ok(toScrollResult(comments));
+    }
+
+    @Override
+    public Result queryReplies(Long blogId, Long parentId, Long lastId) {
+        // 回复按时间正序展开，点击时才加载
+        return Result.ok(toScrollResult(queryPage(blogId, parentId, lastId)));
+    }
+
+    /**
+     * 按id游标查询一页评论，走 idx_blog_parent 索引
+     * 一级评论倒序：select * from tb_blog_comments where blog_id = ? and parent_id = 0 and id < ?
+     * and (status is null or status <> 2) order by id desc limit ?
+     * 回复正序：select * from tb_blog_comments where blog_id = ? and parent_id = ? and id > ?
+     * and (status is null or status <> 2) order by id limit ?
+     *
+     * @param blogId
+     * @param parentId 0表示一级评论
+     * @param lastId   上一页最后一条评论的id，第一页为空
+     */
+    private List<BlogComments> queryPage(Long blogId, Long parentId, Long lastId) {
+        boolean topLevel = parentId == 0;
+        return query()
+                .eq("blog_id", blogId)
+                .eq("parent_id", parentId)
+                .lt(topLevel && lastId != null, "id", lastId)
+                .gt(!topLevel && lastId != null, "id", lastId)
+                .and(w -> w.isNull("status").or().ne("status", STATUS_HIDDEN))
+                .orderBy(true, !topLevel, "id")
+                .last("limit " + SystemConstants.MAX_PAGE_SIZE)
+                .list();
+    }
+
+    private ScrollResult toScrollResult(List<BlogComments> comments) {
+        // 1、批量查询评论的用户
+        Map<Long, UserDTO> users = userService.queryUserDTOs(
+                comments.stream().map(BlogComments::getUserId).collect(Collectors.toSet()));
+        for (BlogComments comment : comments) {
+            UserDTO user = users.get(comment.getUserId());
+            if (user != null) {
+                comment.setName(user.getNickName());
+                comment.setIcon(user.getIcon());
+            }
+        }
+        // 2、封装并返回，不足一页说明没有下一页，游标为空
+        ScrollResult r = new ScrollResult();
+        r.setList(comments);
+        if (comments.size() >= SystemConstants.MAX_PAGE_SIZE) {
+            r.setLastId(comments.get(comments.size() - 1).getId());
+        }
+        return r;
+    }
+
 }
@@ -1,32 +1,48 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BlogCounter;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.FeedPusher;
+import com.hmdp.utils.FeedWindowCache;
+import com.hmdp.utils.HotBlogRanking;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -40,6 +56,14 @@ import java.util.stream.Collectors;
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
+    private static final DefaultRedisScript<Long> LIKE_TOGGLE_SCRIPT;
+
+    static {
+        LIKE_TOGGLE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_TOGGLE_SCRIPT.setLocation(new ClassPathResource("like_toggle.lua"));
+        LIKE_TOGGLE_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private IUserService userService;
 
@@ -47,35 +71,58 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private IFollowService followService;
+    private FeedPusher feedPusher;
+
+    @Resource
+    private HotBlogRanking hotBlogRanking;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private FeedWindowCache feedWindowCache;
+
+    @Resource
+    private BlogCounter blogCounter;
 
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 1、从排行榜查询当前页的笔记id和点赞数
+        long start = (long) (Math.max(current, 1) - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<ZSetOperations.TypedTuple<String>> typedTuples = hotBlogRanking.range(start, SystemConstants.MAX_PAGE_SIZE);
+        if (typedTuples == null || typedTuples.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = typedTuples.stream().map(tuple -> Long.valueOf(tuple.getValue())).collect(Collectors.toList());
+        // 2、批量查询blog，走缓存
+        Map<Long, Blog> blogMap = queryBlogs(ids);
+        // 3、按排行榜顺序组装，已经不存在的blog从排行榜移除
+        List<Blog> records = new ArrayList<>(ids.size());
+        List<Long> missing = new ArrayList<>();
+        for (Long id : ids) {
+            Blog blog = blogMap.get(id);
+            if (blog == null) {
+                missing.add(id);
+                continue;
+            }
+            records.add(blog);
+        }
+        hotBlogRanking.remove(missing);
+        // 4、批量查询用户、点赞数和点赞状态
+        hydrateBlogs(records);
         return Result.ok(records);
     }
 
     @Override
     public Result queryBlogById(Long id) {
-        // 1、查询blog
-        Blog blog = getById(id);
+        // 1、查询blog，走逻辑过期缓存
+        Blog blog = cacheClient.queryWithLogicalExpireOrLoad(RedisConstants.CACHE_BLOG_KEY, id, Blog.class,
+                this::getById, RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
         if (blog == null) {
             return Result.fail("笔记不存在！");
         }
-        // 2、查询blog有关的用户
-        queryBlogUser(blog);
-        // 3、查询blog是否被点赞
-        isBlogLiked(blog);
+        // 2、查询blog有关的用户、点赞数和是否被点赞
+        hydrateBlogs(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
@@ -83,30 +130,20 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result likeBlog(Long id) {
         // 1、获取登录用户
         Long userId = UserHolder.getUser().getId();
-        // 2、判断当前登录用户是否已经点赞
-        String key = RedisConstants.BLOG_LIKED_KEY + id;
-        // Boolean isMember = stringRedisTemplate.opsForSet().isMember(key, userId.toString());
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        if (score == null) {
-            // 3、如果未点赞，则可以点赞
-            // 3.1、数据库点赞数+1
-            boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            // 3.2、保存用户到Redis的Set集合 zadd key value score
-            if (isSuccess) {
-                // stringRedisTemplate.opsForSet().add(key, userId.toString());
-                stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
-            }
-        } else {
-            // 4、如果已经点赞，则取消点赞
-            // 4.1、数据库点赞数-1
-            boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
-            // 4.2、从Redis的Set集合移除用户
-            if (isSuccess) {
-                // stringRedisTemplate.opsForSet().remove(key, userId.toString());
-                stringRedisTemplate.opsForZSet().remove(key, userId.toString());
-            }
+        // 1.1、校验笔记存在，走逻辑过期缓存（不存在的id缓存空值），否则脚本会给不存在的笔记写入排行榜和点赞数增量
+        Blog blog = cacheClient.queryWithLogicalExpireOrLoad(RedisConstants.CACHE_BLOG_KEY, id, Blog.class,
+                this::getById, RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if (blog == null) {
+            return Result.fail("笔记不存在！");
         }
-        return Result.ok();
+        // 2、执行lua脚本：判断是否已经点赞，点赞或取消点赞，同时累加点赞数增量（由后台批量落库）和更新排行榜
+        Long delta = stringRedisTemplate.execute(
+                LIKE_TOGGLE_SCRIPT,
+                Arrays.asList(RedisConstants.BLOG_LIKED_KEY + id, RedisConstants.BLOG_LIKED_DELTA_KEY, RedisConstants.BLOG_HOT_KEY),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), id.toString()
+        );
+        // 3、返回是否点赞
+        return Result.ok(delta != null && delta > 0);
     }
 
     @Override
@@ -119,14 +156,11 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         // 2、解析出其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
-        // 3、根据用户id查询用户 where id in (5, 1) order by field(id, 5, 1)
-        List<UserDTO> userDTOS = userService.query()
-                .in("id", ids)
-                .last("order by field(id," + idStr + ")")
-                .list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+        // 3、根据用户id批量查询用户，走用户缓存，按点赞顺序返回
+        Map<Long, UserDTO> users = userService.queryUserDTOs(ids);
+        List<UserDTO> userDTOS = ids.stream()
+                .map(users::get)
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
         // 4、返回
         return Result.ok(userDTOS);
@@ -142,18 +176,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("笔记发布失败！");
         }
-        // 3、查询笔记作者的所有粉丝 select * from tb_follow where follow_user_id = ?
-        List<Follow> follows = followService.query()
-                .eq("follow_user_id", user.getId())
-                .list();
-        // 4、推送笔记id给所有粉丝
-        for (Follow follow : follows) {
-            // 4.1、获取粉丝id
-            Long userId = follow.getUserId();
-            // 4.2、推送
-            String key = RedisConstants.FEED_KEY + userId;
-            stringRedisTemplate.opsForZSet().add(key, blog.getId().toString(), System.currentTimeMillis());
-        }
+        // 3、加入热门排行榜
+        hotBlogRanking.add(blog.getId());
+        // 4、同步写入发件箱，异步推送笔记id给所有粉丝
+        feedPusher.push(user.getId(), blog.getId(), System.currentTimeMillis());
         // 5、返回id
         return Result.ok(blog.getId());
     }
@@ -162,12 +188,16 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogOfFollow(Long max, Integer offset) {
         // 1、获取当前用户
         Long userId = UserHolder.getUser().getId();
-        // 2、查询收件箱 zrevrangebyscore key max min withscores limit offset count
-        String key = RedisConstants.FEED_KEY + userId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(key, 0, max, offset, 2);
+        // 1.1、记录活跃时间，长期不活跃被删除的收件箱在这里重建
+        if (offset == 0) {
+            feedPusher.touch(userId);
+        }
+        // 2、从本地窗口读取本页，未命中时从redis读取一个窗口（FEED_WINDOW_SIZE条），快用完时异步预取下一个窗口
+        int count = SystemConstants.FEED_PAGE_SIZE;
+        List<ZSetOperations.TypedTuple<String>> typedTuples = feedWindowCache.read(userId, max, offset, count,
+                (windowMax, windowOffset) -> loadFeed(userId, windowMax, windowOffset, RedisConstants.FEED_WINDOW_SIZE));
         // 3、非空判断
-        if (typedTuples == null || typedTuples.isEmpty()) {
+        if (typedTuples.isEmpty()) {
             return Result.ok();
         }
         // 4、解析收件箱数据：blogId、minTime（时间戳）、offset
@@ -186,17 +216,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
-        // 5、根据id查询blog
-        List<Blog> blogs = query()
-                .in("id", ids)
-                .last("order by field(id," + StrUtil.join(",", ids) + ")")
-                .list();
-        for (Blog blog : blogs) {
-            // 5.1、查询blog有关的用户
-            queryBlogUser(blog);
-            // 5.2、查询blog是否被点赞
-            isBlogLiked(blog);
+        // 4.3、整页的时间戳都等于上次的最小时间，下次要把上次跳过的也一起跳过
+        if (minTime == max) {
+            os += offset;
         }
+        // 5、根据id批量查询blog，走缓存，按收件箱的顺序返回
+        List<Blog> blogs = toOrderedList(ids, queryBlogs(ids));
+        // 5.1、批量查询blog有关的用户、点赞数和是否被点赞
+        hydrateBlogs(blogs);
         // 6、封装并返回
         ScrollResult r = new ScrollResult();
         r.setList(blogs);
@@ -205,37 +232,230 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(r);
     }
 
+    @Override
+    public Result queryMyBlog(Integer current) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        return queryBlogByUserId(current, user.getId());
+    }
+
+    @Override
+    public Result queryBlogByUserId(Integer current, Long userId) {
+        // 1、根据用户分页查询，只查id，不查询总数
+        Page<Blog> page = query()
+                .select("id")
+                .eq("user_id", userId)
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
+        List<Long> ids = page.getRecords().stream().map(Blog::getId).collect(Collectors.toList());
+        // 2、根据id批量查询blog，走缓存
+        List<Blog> blogs = toOrderedList(ids, queryBlogs(ids));
+        // 3、批量查询blog有关的用户、点赞数和是否被点赞
+        hydrateBlogs(blogs);
+        return Result.ok(blogs);
+    }
+
+    @Override
+    public Result scrollBlogByUserId(Long userId, Long lastTime, Long lastId) {
+        // 1、按(create_time, id)游标查询下一页的id，走 idx_user_time 索引，不查询总数
+        // select id, create_time from tb_blog where user_id = ? and (create_time < ? or (create_time = ? and id < ?))
+        // order by create_time desc, id desc limit ?
+        QueryChainWrapper<Blog> wrapper = query()
+                .select("id", "create_time")
+                .eq("user_id", userId);
+        if (lastTime != null && lastId != null) {
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(lastTime), ZoneId.systemDefault());
+            wrapper.and(w -> w.lt("create_time", time)
+                    .or(w2 -> w2.eq("create_time", time).lt("id", lastId)));
+        }
+        List<Blog> page = wrapper
+                .orderByDesc("create_time", "id")
+                .last("limit " + SystemConstants.MAX_PAGE_SIZE)
+                .list();
+        ScrollResult r = new ScrollResult();
+        if (page.isEmpty()) {
+            r.setList(Collections.emptyList());
+            return Result.ok(r);
+        }
+        // 2、根据id批量查询blog，走缓存
+        List<Long> ids = page.stream().map(Blog::getId).collect(Collectors.toList());
+        List<Blog> blogs = toOrderedList(ids, queryBlogs(ids));
+        // 3、批量查询blog有关的用户、点赞数和是否被点赞
+        hydrateBlogs(blogs);
+        // 4、封装并返回，游标取本页最后一条
+        Blog last = page.get(page.size() - 1);
+        r.setList(blogs);
+        r.setMinTime(last.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        r.setLastId(last.getId());
+        return Result.ok(r);
+    }
+
     /**
-     * 判断blog是否被点赞
+     * 从redis读取关注的笔记：收件箱和关注的大V的发件箱归并
      *
-     * @param blog
+     * @param userId
+     * @param max    最大时间戳
+     * @param offset 跳过的与最大时间戳相同的条数
+     * @param count  读取的条数
+     * @return 按时间戳倒序，不足count条说明后面已经没有了
      */
-    private void isBlogLiked(Blog blog) {
-        // 1、获取登录用户
-        UserDTO user = UserHolder.getUser();
-        if (user == null) {
-            // 用户未登录，无需查询点赞状态
-            return;
+    private List<ZSetOperations.TypedTuple<String>> loadFeed(Long userId, long max, int offset, int count) {
+        // 1、查询关注的大V，大V的笔记不推送，需要从他们的发件箱拉取
+        Set<String> bigVs = stringRedisTemplate.opsForSet().intersect("follow:" + userId, RedisConstants.FEED_BIGV_KEY);
+        List<String> keys = new ArrayList<>();
+        keys.add(RedisConstants.FEED_KEY + userId);
+        if (bigVs != null) {
+            bigVs.forEach(id -> keys.add(RedisConstants.FEED_OUTBOX_KEY + id));
+        }
+        // 2、pipeline查询收件箱和发件箱 zrevrangebyscore key max 0 withscores limit 0 offset+count
+        //    offset是跨所有来源计算的，所以每个来源都要从0开始取 offset+count 条，合并后再跳过
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zSetCommands().zRevRangeByScoreWithScores(
+                        key.getBytes(StandardCharsets.UTF_8), 0, max, 0, offset + count);
+            }
+            return null;
+        });
+        // 3、多路归并：按时间戳倒序，时间戳相同按id倒序（与redis中相同分数的顺序一致），同一篇笔记只取一次
+        //    任何一个来源取满时，归并结果一定有count条
+        return mergeFeed(results, offset, count);
+    }
+
+    /**
+     * 归并收件箱和大V发件箱的查询结果
+     *
+     * @param results 每个来源按分数倒序的查询结果
+     * @param offset  跳过的条数
+     * @param count   返回的条数
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private List<ZSetOperations.TypedTuple<String>> mergeFeed(List<Object> results, int offset, int count) {
+        PriorityQueue<FeedCursor> queue = new PriorityQueue<>(Math.max(results.size(), 1));
+        for (Object result : results) {
+            Set<ZSetOperations.TypedTuple<String>> tuples = (Set<ZSetOperations.TypedTuple<String>>) result;
+            if (tuples != null && !tuples.isEmpty()) {
+                FeedCursor cursor = new FeedCursor(tuples.iterator());
+                queue.add(cursor);
+            }
+        }
+        List<ZSetOperations.TypedTuple<String>> merged = new ArrayList<>(count);
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        while (!queue.isEmpty() && merged.size() < count) {
+            FeedCursor cursor = queue.poll();
+            ZSetOperations.TypedTuple<String> tuple = cursor.current;
+            if (cursor.next()) {
+                queue.add(cursor);
+            }
+            if (!seen.add(tuple.getValue())) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            merged.add(tuple);
+        }
+        return merged;
+    }
+
+    /**
+     * 归并时某个来源当前读到的位置
+     */
+    private static class FeedCursor implements Comparable<FeedCursor> {
+        private final Iterator<ZSetOperations.TypedTuple<String>> iterator;
+        private ZSetOperations.TypedTuple<String> current;
+
+        private FeedCursor(Iterator<ZSetOperations.TypedTuple<String>> iterator) {
+            this.iterator = iterator;
+            this.current = iterator.next();
+        }
+
+        private boolean next() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            current = iterator.next();
+            return true;
+        }
+
+        @Override
+        public int compareTo(FeedCursor o) {
+            int c = Double.compare(o.current.getScore(), current.getScore());
+            return c != 0 ? c : o.current.getValue().compareTo(current.getValue());
         }
-        Long userId = user.getId();
-        // 2、判断当前登录用户是否已经点赞
-        String key = "blog:liked:" + blog.getId();
-        // Boolean isMember = stringRedisTemplate.opsForSet().isMember(key, userId.toString());
-        // blog.setIsLike(BooleanUtil.isTrue(isMember));
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score != null);
     }
 
     /**
-     * 查询blog用户
+     * 按id的顺序组装blog，不存在的跳过
+     *
+     * @param ids
+     * @param blogMap
+     * @return
+     */
+    private List<Blog> toOrderedList(List<Long> ids, Map<Long, Blog> blogMap) {
+        return ids.stream().map(blogMap::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * 批量查询blog，走逻辑过期缓存mget，未命中的一次查询数据库
      *
-     * @param blog
+     * @param ids
+     * @return
      */
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    private Map<Long, Blog> queryBlogs(List<Long> ids) {
+        return cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_BLOG_KEY, ids, Blog.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 批量填充blog的作者信息、点赞数、评论数和当前用户是否点赞：作者走用户缓存mget，增量和点赞状态都用pipeline批量查询。
+     * 点赞数、评论数取数据库中的值加上还没有落库的增量，点赞数和热门排行榜的计算方式一致
+     *
+     * @param blogs
+     */
+    private void hydrateBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        // 1、批量查询作者
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds);
+        for (Blog blog : blogs) {
+            UserDTO author = users.get(blog.getUserId());
+            if (author != null) {
+                blog.setName(author.getNickName());
+                blog.setIcon(author.getIcon());
+            }
+        }
+        // 2、获取登录用户，未登录的无需查询点赞状态
+        UserDTO user = UserHolder.getUser();
+        byte[] member = user == null ? null : user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        // 3、批量查询还没有落库的点赞数、评论数增量
+        List<Long> ids = blogs.stream().map(Blog::getId).collect(Collectors.toList());
+        Map<Long, Long> pendingLikes = blogCounter.pendingLikes(ids);
+        Map<Long, Long> pendingComments = blogCounter.pendingComments(ids);
+        for (Blog blog : blogs) {
+            long liked = (blog.getLiked() == null ? 0 : blog.getLiked()) + pendingLikes.getOrDefault(blog.getId(), 0L);
+            blog.setLiked((int) liked);
+            long comments = (blog.getComments() == null ? 0 : blog.getComments()) + pendingComments.getOrDefault(blog.getId(), 0L);
+            blog.setComments((int) comments);
+        }
+        if (member == null) {
+            return;
+        }
+        // 4、pipeline批量查询当前登录用户是否已经点赞 zscore blog:liked:{id} userId
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                byte[] key = (RedisConstants.BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8);
+                connection.zSetCommands().zScore(key, member);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(results.get(i) != null);
+        }
     }
 
 }
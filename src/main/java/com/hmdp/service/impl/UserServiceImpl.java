@@ -1,9 +1,10 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -11,22 +12,34 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.LoginUserCache;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SignedTokenCodec;
+import com.hmdp.utils.SlidingWindowLimiter;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserConverter;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.BitFieldSubCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -44,19 +57,74 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SignedTokenCodec signedTokenCodec;
+
+    @Resource
+    private LoginUserCache loginUserCache;
+
+    @Resource
+    private SlidingWindowLimiter slidingWindowLimiter;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 本地预过滤：本节点最近发送过验证码的手机号，间隔内的重复请求不用访问redis
+     */
+    private final LRUCache<String, Boolean> recentCodePhones = CacheUtil.newLRUCache(
+            RedisConstants.LIMIT_CODE_LOCAL_CAPACITY, TimeUnit.SECONDS.toMillis(RedisConstants.LIMIT_CODE_INTERVAL));
+
+    private static final DefaultRedisScript<Long> LOGIN_TOKEN_SCRIPT;
+
+    static {
+        LOGIN_TOKEN_SCRIPT = new DefaultRedisScript<>();
+        LOGIN_TOKEN_SCRIPT.setLocation(new ClassPathResource("login_token.lua"));
+        LOGIN_TOKEN_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> LOGIN_CODE_SCRIPT;
+
+    static {
+        LOGIN_CODE_SCRIPT = new DefaultRedisScript<>();
+        LOGIN_CODE_SCRIPT.setLocation(new ClassPathResource("login_code.lua"));
+        LOGIN_CODE_SCRIPT.setResultType(Long.class);
+    }
+
     @Override
-    public Result sendCode(String phone, HttpSession session) {
+    public Result sendCode(String phone, String clientIp, HttpSession session) {
         // 1. 校验手机号
         if (RegexUtils.isPhoneInvalid(phone)) {
             // 2. 如果不符合，返回错误信息
             return Result.fail("手机号格式错误！");
         }
 
+        // 2.1 本地预过滤，本节点间隔内刚发送过的直接拒绝
+        if (recentCodePhones.get(phone, false) != null) {
+            slidingWindowLimiter.recordRejection("code:local");
+            return Result.fail("发送过于频繁，请稍后再试");
+        }
+        // 2.2 redis滑动窗口限流：同一手机号1分钟1次、1小时5次，同一IP1小时20次
+        SlidingWindowLimiter.Rule rejected = slidingWindowLimiter.tryAcquire(
+                new SlidingWindowLimiter.Rule("code:phone:interval", RedisConstants.LIMIT_CODE_PHONE_KEY + phone + ":interval",
+                        RedisConstants.LIMIT_CODE_INTERVAL, TimeUnit.SECONDS, 1),
+                new SlidingWindowLimiter.Rule("code:phone:hourly", RedisConstants.LIMIT_CODE_PHONE_KEY + phone + ":hourly",
+                        1, TimeUnit.HOURS, RedisConstants.LIMIT_CODE_PHONE_HOURLY),
+                new SlidingWindowLimiter.Rule("code:ip:hourly", RedisConstants.LIMIT_CODE_IP_KEY + clientIp,
+                        1, TimeUnit.HOURS, RedisConstants.LIMIT_CODE_IP_HOURLY)
+        );
+        // 记入本地预过滤，间隔内的重复请求不再访问redis
+        recentCodePhones.put(phone, Boolean.TRUE);
+        if (rejected != null) {
+            return Result.fail("发送过于频繁，请稍后再试");
+        }
+
         // 3. 符合，生成验证码
         String code = RandomUtil.randomNumbers(6);
 
-        // 4. 保存验证码到redis // set key value ex 120
+        // 4. 保存验证码到redis // set key value ex 120，新验证码重新计算错误次数
         stringRedisTemplate.opsForValue().set(RedisConstants.LOGIN_CODE_KEY + phone, code, RedisConstants.LOGIN_CODE_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.delete(RedisConstants.LOGIN_CODE_ATTEMPTS_KEY + phone);
 
         // 5. 发送验证码
         log.debug("发送短信验证码成功，验证码：{}", code);
@@ -74,13 +142,27 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             return Result.fail("手机号格式错误！");
         }
 
-        // 2. 从redis获取验证码并校验
-        String cacheCode = stringRedisTemplate.opsForValue().get(RedisConstants.LOGIN_CODE_KEY + phone);
+        // 1.1 限制同一手机号的校验次数，防止暴力猜测验证码
+        SlidingWindowLimiter.Rule rejected = slidingWindowLimiter.tryAcquire(
+                new SlidingWindowLimiter.Rule("login:phone", RedisConstants.LIMIT_LOGIN_PHONE_KEY + phone,
+                        RedisConstants.LIMIT_LOGIN_WINDOW, TimeUnit.MINUTES, RedisConstants.LIMIT_LOGIN_ATTEMPTS)
+        );
+        if (rejected != null) {
+            return Result.fail("验证次数过多，请稍后再试");
+        }
+
+        // 2. 校验验证码（lua脚本原子比较，一致才删除，验证码只能使用一次；不一致累加错误次数，达到上限作废）
         String code = loginForm.getCode();
-        if (cacheCode == null || !cacheCode.equals(code)) {
-            // 3. 不一致，报错
+        if (StrUtil.isBlank(code)) {
             return Result.fail("验证码错误");
         }
+        Long checked = stringRedisTemplate.execute(LOGIN_CODE_SCRIPT,
+                Arrays.asList(RedisConstants.LOGIN_CODE_KEY + phone, RedisConstants.LOGIN_CODE_ATTEMPTS_KEY + phone),
+                code, String.valueOf(RedisConstants.LOGIN_CODE_MAX_ATTEMPTS));
+        if (checked == null || checked != 1) {
+            // 3. 不一致，报错
+            return Result.fail(checked != null && checked == -2 ? "验证码错误次数过多，请重新获取" : "验证码错误");
+        }
 
         // 4. 一致，根据手机号查询用户 select * from tb_user where phone = ?
         User user = query().eq("phone", phone).one();
@@ -92,21 +174,27 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         }
 
         // 7. 保存用户信息到redis中
+        UserDTO userDTO = UserConverter.toDTO(user);
+        if (signedTokenCodec.isEnabled()) {
+            // 启用了签名token，用户信息直接放在token里，不需要保存到redis
+            return Result.ok(signedTokenCodec.issue(userDTO));
+        }
+
         // 7.1 随机生成token，作为登录令牌
         String token = UUID.randomUUID().toString(true);
 
         // 7.2 将User对象转为HashMap存储
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO, new HashMap<>(),
-                CopyOptions.create()
-                        .setIgnoreNullValue(true)
-                        .setFieldValueEditor((fieldName, fieldValue) -> fieldValue.toString()));
+        Map<String, String> userMap = UserConverter.toMap(userDTO);
 
-        // 7.3 存储到redis中
+        // 7.3 存储到redis中，并设置token有效期（lua脚本，一次往返）
         String tokenKey = RedisConstants.LOGIN_USER_KEY + token;
-        stringRedisTemplate.opsForHash().putAll(tokenKey, userMap);
-        // 7.4 设置token有效期
-        stringRedisTemplate.expire(tokenKey, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+        List<String> args = new ArrayList<>(userMap.size() * 2 + 1);
+        args.add(String.valueOf(TimeUnit.MINUTES.toSeconds(RedisConstants.LOGIN_USER_TTL)));
+        userMap.forEach((field, value) -> {
+            args.add(field);
+            args.add(value);
+        });
+        stringRedisTemplate.execute(LOGIN_TOKEN_SCRIPT, Collections.singletonList(tokenKey), args.toArray());
 
         // 8. 返回token
         return Result.ok(token);
@@ -171,13 +259,52 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(count);
     }
 
+    @Override
+    public Result logout(String token) {
+        if (StrUtil.isBlank(token)) {
+            return Result.ok();
+        }
+        if (signedTokenCodec.isSignedToken(token)) {
+            // 签名token，加入吊销名单
+            signedTokenCodec.revoke(token);
+            return Result.ok();
+        }
+        // 删除redis中的会话，并通知所有节点删除本地缓存
+        stringRedisTemplate.delete(RedisConstants.LOGIN_USER_KEY + token);
+        loginUserCache.invalidateToken(token);
+        return Result.ok();
+    }
+
+    @Override
+    public boolean updateById(User user) {
+        boolean isSuccess = super.updateById(user);
+        if (isSuccess) {
+            // 用户信息变更，删除用户缓存，并通知所有节点删除登录用户的本地缓存
+            stringRedisTemplate.delete(RedisConstants.CACHE_USER_KEY + user.getId());
+            loginUserCache.invalidateUser(user.getId());
+        }
+        return isSuccess;
+    }
+
+    @Override
+    public Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        // mget缓存，未命中的 select * from tb_user where id in (...) 一次查出
+        return cacheClient.queryBatchWithPassThrough(RedisConstants.CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .map(UserConverter::toDTO)
+                        .collect(Collectors.toMap(UserDTO::getId, Function.identity())),
+                RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     private User createUserWithPhone(String phone) {
         // 1. 创建用户
         User user = new User();
         user.setPhone(phone);
         user.setNickName(SystemConstants.USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
-        // 2. 保存用户
-        save(user);
+        // 2. 保存用户 insert ignore，并发登录时手机号已被其他请求注册，则直接查询
+        if (baseMapper.insertIgnore(user) == 0) {
+            return query().eq("phone", phone).one();
+        }
         return user;
     }
 
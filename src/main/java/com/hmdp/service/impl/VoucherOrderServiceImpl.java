@@ -3,11 +3,15 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.LockFenceMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisLockFactory;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
@@ -21,8 +25,10 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -30,6 +36,8 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -55,6 +63,12 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     RedissonClient redissonClient;
 
+    @Resource
+    private LockFenceMapper lockFenceMapper;
+
+    @Resource
+    private RedisLockFactory redisLockFactory;
+
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
     static {
@@ -66,10 +80,38 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     // 异步处理线程池
     private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
 
+    // 清理过期栅栏令牌的线程池
+    private final ScheduledExecutorService fenceCleanExecutor = Executors.newSingleThreadScheduledExecutor();
+
     // 在类初始化之后执行，因为当这个类初始化好了之后，随时都是有可能要执行的
     @PostConstruct
     private void init() {
         SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        fenceCleanExecutor.scheduleWithFixedDelay(this::cleanExpiredFences,
+                RedisConstants.LOCK_FENCE_CLEAN_INTERVAL, RedisConstants.LOCK_FENCE_CLEAN_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        fenceCleanExecutor.shutdownNow();
+    }
+
+    /**
+     * 一人一单的锁每个用户一把，令牌记录每个用户一行，超过 LOCK_FENCE_TTL 没有下单的删除。
+     * 此时redis中的令牌计数器也已过期，再次获取锁时从当前时间重新计数，新令牌仍然比删除前的大；
+     * 多个节点同时清理删除的是同一批记录，不需要加锁
+     */
+    private void cleanExpiredFences() {
+        try {
+            LocalDateTime before = LocalDateTime.now().minusHours(RedisConstants.LOCK_FENCE_TTL);
+            int deleted;
+            do {
+                deleted = lockFenceMapper.deleteExpired(RedisConstants.LOCK_ORDER_NAME, before,
+                        RedisConstants.LOCK_FENCE_CLEAN_BATCH_SIZE);
+            } while (deleted >= RedisConstants.LOCK_FENCE_CLEAN_BATCH_SIZE);
+        } catch (Exception e) {
+            log.error("清理过期栅栏令牌失败", e);
+        }
     }
 
     private class VoucherOrderHandler implements Runnable {
@@ -161,10 +203,11 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private void handleVoucherOrder(VoucherOrder voucherOrder) {
         // 1、获取用户
         Long userId = voucherOrder.getUserId();
-        // 2、创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
+        // 2、创建锁对象（redisson的锁无法发放栅栏令牌，改用SimpleRedisLock）
+        String lockName = RedisConstants.LOCK_ORDER_NAME + userId;
+        ILock lock = redisLockFactory.getLock(lockName);
         // 3、获取锁
-        boolean isLock = lock.tryLock();
+        boolean isLock = lock.tryLock(RedisConstants.LOCK_ORDER_TTL);
         // 4、判断是否获取锁成功
         if (!isLock) {
             // 获取锁失败，返回错误或者重试
@@ -173,8 +216,8 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
         // 获取锁成功，创建订单
         try {
-            // 获取代理对象（事务）
-            proxy.createVoucherOrder(voucherOrder);
+            // 获取代理对象（事务），带上栅栏令牌，锁过期后的写入会被数据库拒绝
+            proxy.createVoucherOrder(voucherOrder, lockName, lock.getFencingToken());
         } finally {
             // 释放锁
             lock.unlock();
@@ -187,8 +230,8 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result seckillVoucher(Long voucherId) {
         // 获取用户
         Long userId = UserHolder.getUser().getId();
-        // 获取订单id
-        long orderId = redisIdWorker.nextId("order");
+        // 获取订单id（雪花算法，纯内存生成，不需要访问redis）
+        long orderId = redisIdWorker.nextSnowflakeId();
         // 1、执行lua脚本
         Long result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
@@ -286,20 +329,29 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * 封装秒杀下单逻辑
      *
      * @param voucherOrder
+     * @param lockName     保护本次下单的锁的名称
+     * @param fencingToken 获取锁时拿到的栅栏令牌
      */
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 5、一人一单
+    public void createVoucherOrder(VoucherOrder voucherOrder, String lockName, long fencingToken) {
+        // 5、校验栅栏令牌，令牌过期说明锁已经被其他线程获取，放弃写入
+        // 令牌记录的行锁持有到事务结束，同一把锁的写入在数据库里也是串行的
+        lockFenceMapper.insertIgnore(lockName);
+        if (lockFenceMapper.advance(lockName, fencingToken) == 0) {
+            log.error("锁已过期，放弃下单：{}，令牌：{}", lockName, fencingToken);
+            return;
+        }
+        // 6、一人一单
         Long userId = voucherOrder.getUserId();
-        // 5.1、查询订单
+        // 6.1、查询订单
         int count = query().eq("user_Id", userId).eq("voucher_Id", voucherOrder.getVoucherId()).count();
-        // 5.2、判断是否存在
+        // 6.2、判断是否存在
         if (count > 0) {
             // 用户已经购买过了
             log.error("用户已经购买过一次！");
             return;
         }
-        // 6、扣减库存
+        // 7、扣减库存
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1") // set stock = stock - 1
                 .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0) // where id = ? and stock > ?
@@ -309,7 +361,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             log.error("库存不足！");
             return;
         }
-        // 7、创建订单
+        // 8、创建订单
         save(voucherOrder);
     }
 }
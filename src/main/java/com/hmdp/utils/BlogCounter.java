@@ -0,0 +1,280 @@
+package com.hmdp.utils;
+
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.LockFenceMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 笔记计数（点赞数、评论数）异步落库：写入时只在redis的hash中累加增量（点赞在like_toggle.lua中，评论在发表评论时），后台定时批量更新到数据库。
+ * 刷新时先把增量hash改名为刷新中的key，新的增量写入新的hash；刷新中的key在更新成功后才删除，进程崩溃后下次刷新时继续处理。
+ * 每批增量从redis的递增计数器分配一个批次号，和数据库更新在同一个事务里记录，同一批增量重复刷新时不会重复累加；
+ * 只有确认已经落库（本次更新成功，或数据库中记录的批次号等于本批次号）的增量才删除。
+ * 笔记缓存保存落库的计数，读取时加上增量；删除增量时同时推进缓存的栅栏令牌，落库前读取的旧值不会再写入缓存
+ */
+@Slf4j
+@Component
+public class BlogCounter {
+
+    /**
+     * 刷新中的hash里记录批次号的字段，其他字段都是笔记id
+     */
+    private static final String SEQ_FIELD = "seq";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final BlogMapper blogMapper;
+
+    private final LockFenceMapper lockFenceMapper;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final RedisLockFactory redisLockFactory;
+
+    private static final DefaultRedisScript<Long> FLUSH_FINISH_SCRIPT;
+
+    static {
+        FLUSH_FINISH_SCRIPT = new DefaultRedisScript<>();
+        FLUSH_FINISH_SCRIPT.setLocation(new ClassPathResource("blog_flush_finish.lua"));
+        FLUSH_FINISH_SCRIPT.setResultType(Long.class);
+    }
+
+    // 刷新线程池
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public BlogCounter(StringRedisTemplate stringRedisTemplate, BlogMapper blogMapper, LockFenceMapper lockFenceMapper,
+                       TransactionTemplate transactionTemplate, RedisLockFactory redisLockFactory) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.blogMapper = blogMapper;
+        this.lockFenceMapper = lockFenceMapper;
+        this.transactionTemplate = transactionTemplate;
+        this.redisLockFactory = redisLockFactory;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 启动时先刷新一次，处理上次没有刷新完的增量
+        flushExecutor.scheduleWithFixedDelay(this::flush,
+                0, RedisConstants.BLOG_COUNTER_FLUSH_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        flushExecutor.shutdown();
+        flush();
+    }
+
+    /**
+     * 累加评论数增量 hincrby blog:comments:delta blogId delta
+     *
+     * @param blogId
+     * @param delta
+     */
+    public void incrComments(Long blogId, long delta) {
+        stringRedisTemplate.opsForHash().increment(RedisConstants.BLOG_COMMENTS_DELTA_KEY, blogId.toString(), delta);
+    }
+
+    /**
+     * 批量查询还没有落库的点赞数增量，包括等待刷新和正在刷新的
+     *
+     * @param blogIds
+     * @return 笔记id到增量的映射，没有增量的不包含在内
+     */
+    public Map<Long, Long> pendingLikes(Collection<Long> blogIds) {
+        return pending(RedisConstants.BLOG_LIKED_DELTA_KEY, RedisConstants.BLOG_LIKED_FLUSHING_KEY, blogIds);
+    }
+
+    /**
+     * 批量查询还没有落库的评论数增量，包括等待刷新和正在刷新的
+     *
+     * @param blogIds
+     * @return 笔记id到增量的映射，没有增量的不包含在内
+     */
+    public Map<Long, Long> pendingComments(Collection<Long> blogIds) {
+        return pending(RedisConstants.BLOG_COMMENTS_DELTA_KEY, RedisConstants.BLOG_COMMENTS_FLUSHING_KEY, blogIds);
+    }
+
+    private Map<Long, Long> pending(String deltaKey, String flushingKey, Collection<Long> blogIds) {
+        Map<Long, Long> result = new HashMap<>(blogIds.size() * 2);
+        if (blogIds.isEmpty()) {
+            return result;
+        }
+        List<Long> ids = new ArrayList<>(blogIds);
+        byte[][] fields = new byte[ids.size()][];
+        for (int i = 0; i < ids.size(); i++) {
+            fields[i] = ids.get(i).toString().getBytes(StandardCharsets.UTF_8);
+        }
+        // pipeline：hmget delta ids、hmget flushing ids
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hashCommands().hMGet(deltaKey.getBytes(StandardCharsets.UTF_8), fields);
+            connection.hashCommands().hMGet(flushingKey.getBytes(StandardCharsets.UTF_8), fields);
+            return null;
+        });
+        for (Object values : results) {
+            List<?> list = (List<?>) values;
+            for (int i = 0; i < ids.size(); i++) {
+                Object value = list.get(i);
+                if (value != null) {
+                    result.merge(ids.get(i), Long.valueOf(value.toString()), Long::sum);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void flush() {
+        ILock lock = redisLockFactory.getLock(RedisConstants.BLOG_COUNTER_FLUSH_LOCK);
+        try {
+            // 多个节点只有一个刷新，等待时间0，看门狗续期
+            if (!lock.tryLock(0, -1, TimeUnit.SECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            try {
+                doFlush("点赞数", RedisConstants.BLOG_LIKED_DELTA_KEY, RedisConstants.BLOG_LIKED_FLUSHING_KEY,
+                        RedisConstants.BLOG_LIKED_FLUSH_FENCE, blogMapper::incrLiked);
+            } catch (Exception e) {
+                log.error("点赞数刷新失败", e);
+            }
+            try {
+                doFlush("评论数", RedisConstants.BLOG_COMMENTS_DELTA_KEY, RedisConstants.BLOG_COMMENTS_FLUSHING_KEY,
+                        RedisConstants.BLOG_COMMENTS_FLUSH_FENCE, blogMapper::incrComments);
+            } catch (Exception e) {
+                log.error("评论数刷新失败", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 刷新一种计数的增量
+     *
+     * @param name        计数名称，用于日志
+     * @param deltaKey    增量hash
+     * @param flushingKey 刷新中的增量hash
+     * @param fence       记录批次号的名称
+     * @param updater     批量更新数据库
+     */
+    private void doFlush(String name, String deltaKey, String flushingKey, String fence,
+                         Consumer<Map<Long, Long>> updater) {
+        // 1、没有未完成的批次，把当前的增量改名为刷新中
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(flushingKey))) {
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(deltaKey))) {
+                return;
+            }
+            stringRedisTemplate.rename(deltaKey, flushingKey);
+        }
+        // 2、分配批次号 incr blog:counter:seq，已经分配过的（上次刷新中断）沿用原来的
+        if (!stringRedisTemplate.opsForHash().hasKey(flushingKey, SEQ_FIELD)) {
+            Long next = stringRedisTemplate.opsForValue().increment(RedisConstants.BLOG_COUNTER_SEQ_KEY);
+            stringRedisTemplate.opsForHash().putIfAbsent(flushingKey, SEQ_FIELD, String.valueOf(next));
+        }
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(flushingKey);
+        long seq = Long.parseLong(entries.remove(SEQ_FIELD).toString());
+        Map<Long, Long> deltas = new HashMap<>(entries.size() * 2);
+        entries.forEach((field, value) -> {
+            long delta = Long.parseLong(value.toString());
+            if (delta != 0) {
+                deltas.put(Long.valueOf(field.toString()), delta);
+            }
+        });
+        // 3、同一个事务里记录批次号并批量更新，批次号已经处理过的说明上次已经提交，直接跳过
+        Boolean applied = transactionTemplate.execute(status -> {
+            lockFenceMapper.insertIgnore(fence);
+            if (lockFenceMapper.advanceIfNewer(fence, seq) == 0) {
+                return false;
+            }
+            Map<Long, Long> batch = new HashMap<>();
+            for (Map.Entry<Long, Long> entry : deltas.entrySet()) {
+                batch.put(entry.getKey(), entry.getValue());
+                if (batch.size() >= RedisConstants.BLOG_COUNTER_FLUSH_BATCH_SIZE) {
+                    updater.accept(batch);
+                    batch = new HashMap<>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                updater.accept(batch);
+            }
+            return true;
+        });
+        // 4、没有更新，确认是否已经落库
+        if (!Boolean.TRUE.equals(applied)) {
+            Long token = lockFenceMapper.selectToken(fence);
+            if (token == null || token != seq) {
+                // 4.1、数据库中的批次号更大，说明redis中的计数器落后了（例如数据丢失），本批次没有落库过。
+                // 计数器推进到数据库的批次号之后，本批次重新分配批次号，下次刷新时重试，不删除
+                reassignSeq(flushingKey, token == null ? 0 : token);
+                log.warn("{}刷新批次号落后，批次：{}，已落库批次：{}，重新分配后重试", name, seq, token);
+                return;
+            }
+            // 4.2、批次号等于已落库的批次号，上次已经提交，只是没有删除
+        }
+        // 5、确认已经落库，推进笔记缓存的令牌、删除缓存，并删除刷新中的增量
+        finish(flushingKey, new ArrayList<>(deltas.keySet()));
+        log.debug("{}刷新完成，批次：{}，笔记数：{}，{}", name, seq, deltas.size(),
+                Boolean.TRUE.equals(applied) ? "已更新" : "批次已处理过，跳过");
+    }
+
+    /**
+     * 落库后收尾：笔记缓存中的点赞数、评论数是落库前的值，推进缓存的栅栏令牌并删除缓存，拒绝落库前读取数据库的线程写回旧值。
+     * 按批执行，最后一批同时删除刷新中的增量
+     *
+     * @param flushingKey 刷新中的增量hash
+     * @param blogIds     本批次涉及的笔记id
+     */
+    private void finish(String flushingKey, List<Long> blogIds) {
+        String fenceTtl = String.valueOf(TimeUnit.HOURS.toMillis(RedisConstants.LOCK_FENCE_TTL));
+        int from = 0;
+        do {
+            int to = Math.min(from + RedisConstants.BLOG_COUNTER_FLUSH_BATCH_SIZE, blogIds.size());
+            List<String> keys = new ArrayList<>((to - from) * 2 + 1);
+            keys.add(flushingKey);
+            for (Long blogId : blogIds.subList(from, to)) {
+                String cacheKey = RedisConstants.CACHE_BLOG_KEY + blogId;
+                keys.add(RedisConstants.LOCK_FENCE_KEY + cacheKey);
+                keys.add(cacheKey);
+            }
+            stringRedisTemplate.execute(FLUSH_FINISH_SCRIPT, keys, fenceTtl, to == blogIds.size() ? "1" : "0");
+            from = to;
+        } while (from < blogIds.size());
+    }
+
+    /**
+     * 把批次号计数器推进到minSeq之后，并给刷新中的增量重新分配批次号。持有刷新锁时调用，不会和其他节点并发
+     *
+     * @param flushingKey 刷新中的增量hash
+     * @param minSeq      已落库的批次号
+     */
+    private void reassignSeq(String flushingKey, long minSeq) {
+        String current = stringRedisTemplate.opsForValue().get(RedisConstants.BLOG_COUNTER_SEQ_KEY);
+        if (current == null || Long.parseLong(current) < minSeq) {
+            stringRedisTemplate.opsForValue().set(RedisConstants.BLOG_COUNTER_SEQ_KEY, String.valueOf(minSeq));
+        }
+        Long next = stringRedisTemplate.opsForValue().increment(RedisConstants.BLOG_COUNTER_SEQ_KEY);
+        stringRedisTemplate.opsForHash().put(flushingKey, SEQ_FIELD, String.valueOf(next));
+    }
+
+}
@@ -1,14 +1,29 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -20,8 +35,11 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final RedisLockFactory redisLockFactory;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisLockFactory redisLockFactory) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisLockFactory = redisLockFactory;
     }
 
     /**
@@ -97,9 +115,143 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 批量查询缓存，未命中的一次性查询数据库并用pipeline写回，同样缓存空值解决缓存穿透问题
+     *
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param dbFallback 根据未命中的id批量查询数据库，返回id到数据的映射
+     * @param time
+     * @param timeUnit
+     * @param <R>
+     * @param <ID>
+     * @return id到数据的映射，不存在的id不包含在内
+     */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit timeUnit) {
+        Map<ID, R> result = new HashMap<>(ids.size() * 2);
+        if (ids.isEmpty()) {
+            return result;
+        }
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        List<String> keys = new ArrayList<>(idList.size());
+        idList.forEach(id -> keys.add(keyPrefix + id));
+        // 1、从redis批量查询缓存 mget
+        List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < idList.size(); i++) {
+            String json = jsons == null ? null : jsons.get(i);
+            // 2、存在，直接放入结果
+            if (!StrUtil.isBlank(json)) {
+                result.put(idList.get(i), JSONUtil.toBean(json, type));
+            } else if (json == null) {
+                // 3、不存在，记录下来查询数据库；命中空值的直接跳过
+                missIds.add(idList.get(i));
+            }
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+        // 4、批量查询数据库
+        Map<ID, R> dbResult = dbFallback.apply(missIds);
+        // 5、pipeline写回redis，数据库中不存在的写入空值
+        Expiration expiration = Expiration.from(time, timeUnit);
+        Expiration nullExpiration = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : missIds) {
+                byte[] key = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                R r = dbResult.get(id);
+                if (r == null) {
+                    connection.stringCommands().set(key, new byte[0], nullExpiration, RedisStringCommands.SetOption.UPSERT);
+                    continue;
+                }
+                result.put(id, r);
+                connection.stringCommands().set(key, JSONUtil.toJsonStr(r).getBytes(StandardCharsets.UTF_8),
+                        expiration, RedisStringCommands.SetOption.UPSERT);
+            }
+            return null;
+        });
+        // 6、返回
+        return result;
+    }
+
     // 线程池
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
+    private static final DefaultRedisScript<Long> FENCED_SET_SCRIPT;
+
+    static {
+        FENCED_SET_SCRIPT = new DefaultRedisScript<>();
+        FENCED_SET_SCRIPT.setLocation(new ClassPathResource("fenced_set.lua"));
+        FENCED_SET_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> FENCED_DELETE_SCRIPT;
+
+    static {
+        FENCED_DELETE_SCRIPT = new DefaultRedisScript<>();
+        FENCED_DELETE_SCRIPT.setLocation(new ClassPathResource("fenced_delete.lua"));
+        FENCED_DELETE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> FENCED_MSET_SCRIPT;
+
+    static {
+        FENCED_MSET_SCRIPT = new DefaultRedisScript<>();
+        FENCED_MSET_SCRIPT.setLocation(new ClassPathResource("fenced_mset.lua"));
+        FENCED_MSET_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 读取key当前的栅栏令牌，在查询数据库之前调用，写入时交给setWithFence
+     *
+     * @param key
+     * @return 令牌，没有时为0
+     */
+    public long getFenceToken(String key) {
+        String token = stringRedisTemplate.opsForValue().get(RedisConstants.LOCK_FENCE_KEY + key);
+        return token == null ? 0 : Long.parseLong(token);
+    }
+
+    /**
+     * 带栅栏令牌写入缓存并设置TTL，查询数据库之后令牌已经被推进（deleteWithFence）的不写入，不会用旧数据覆盖
+     *
+     * @param key
+     * @param value
+     * @param fencingToken 查询数据库之前getFenceToken拿到的令牌
+     * @param time
+     * @param timeUnit
+     * @return 是否写入
+     */
+    public boolean setWithFence(String key, Object value, long fencingToken, Long time, TimeUnit timeUnit) {
+        Long result = stringRedisTemplate.execute(
+                FENCED_SET_SCRIPT,
+                Arrays.asList(RedisConstants.LOCK_FENCE_KEY + key, key),
+                String.valueOf(fencingToken), JSONUtil.toJsonStr(value), String.valueOf(timeUnit.toMillis(time))
+        );
+        return result != null && result == 1;
+    }
+
+    /**
+     * 数据更新后删除缓存，同时推进栅栏令牌，删除之前已经查询数据库的线程写回旧数据时会被拒绝
+     *
+     * @param key
+     */
+    public void deleteWithFence(String key) {
+        stringRedisTemplate.execute(
+                FENCED_DELETE_SCRIPT,
+                Arrays.asList(RedisConstants.LOCK_FENCE_KEY + key, key),
+                String.valueOf(TimeUnit.HOURS.toMillis(RedisConstants.LOCK_FENCE_TTL))
+        );
+    }
+
+    /**
+     * 本JVM中正在重建的key，同一个key只允许一个线程去redis抢互斥锁
+     */
+    private final Set<String> rebuildingKeys = ConcurrentHashMap.newKeySet();
+
     /**
      * 根据指定的key查询缓存，并反序列化为指定类型，需要利用逻辑过期解决缓存击穿问题
      *
@@ -123,10 +275,179 @@ public class CacheClient {
             // 3、不存在，直接返回null
             return null;
         }
+        // 4、命中，判断是否过期，过期则异步重建
+        return readWithLogicalExpire(key, id, json, type, dbFallback, time, timeUnit);
+    }
+
+    /**
+     * 与queryWithLogicalExpire相同，但缓存不存在时获取互斥锁后同步查询数据库并写入，不需要提前预热；数据库中不存在的缓存空值
+     *
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param timeUnit
+     * @param <R>
+     * @param <ID>
+     * @return
+     */
+    public <R, ID> R queryWithLogicalExpireOrLoad(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+        // 1、从redis查询缓存
+        String json = stringRedisTemplate.opsForValue().get(key);
+        // 2、不存在，获取互斥锁后查询数据库并写入
+        if (json == null) {
+            return loadWithMutex(key, id, type, dbFallback, time, timeUnit);
+        }
+        // 3、命中空值
+        if (StrUtil.isBlank(json)) {
+            return null;
+        }
+        // 4、命中，判断是否过期，过期则异步重建
+        return readWithLogicalExpire(key, id, json, type, dbFallback, time, timeUnit);
+    }
+
+    /**
+     * 批量查询逻辑过期的缓存：mget一次查完，不存在的一次性查询数据库并写入，已过期的逐个异步重建。
+     * 不存在的key在查询数据库前先读取栅栏令牌，写入时令牌已经被推进（其他线程重建、数据更新）的放弃写入，不会用旧数据覆盖
+     *
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param dbFallback 根据id批量查询数据库，返回id到数据的映射
+     * @param time
+     * @param timeUnit
+     * @param <R>
+     * @param <ID>
+     * @return id到数据的映射，不存在的id不包含在内
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicalExpire(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit timeUnit) {
+        Map<ID, R> result = new HashMap<>(ids.size() * 2);
+        if (ids.isEmpty()) {
+            return result;
+        }
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        List<String> keys = new ArrayList<>(idList.size());
+        idList.forEach(id -> keys.add(keyPrefix + id));
+        // 1、从redis批量查询缓存 mget
+        List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+        Function<ID, R> singleFallback = id -> dbFallback.apply(Collections.singletonList(id)).get(id);
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < idList.size(); i++) {
+            ID id = idList.get(i);
+            String json = jsons == null ? null : jsons.get(i);
+            if (json == null) {
+                // 2、不存在，记录下来查询数据库
+                missIds.add(id);
+            } else if (!StrUtil.isBlank(json)) {
+                // 3、命中，判断是否过期，过期的异步重建；命中空值的直接跳过
+                R r = readWithLogicalExpire(keys.get(i), id, json, type, singleFallback, time, timeUnit);
+                if (r != null) {
+                    result.put(id, r);
+                }
+            }
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+        // 4、查询数据库之前读取栅栏令牌 mget lock:fence:{key}...
+        List<String> fenceKeys = new ArrayList<>(missIds.size());
+        missIds.forEach(id -> fenceKeys.add(RedisConstants.LOCK_FENCE_KEY + keyPrefix + id));
+        List<String> tokens = stringRedisTemplate.opsForValue().multiGet(fenceKeys);
+        // 5、批量查询数据库
+        Map<ID, R> dbResult = dbFallback.apply(missIds);
+        // 6、存在的带令牌条件写入（lua脚本，一次往返），数据库中不存在的pipeline写入空值
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time));
+        List<String> scriptKeys = new ArrayList<>();
+        List<String> scriptArgs = new ArrayList<>();
+        List<byte[]> nullKeys = new ArrayList<>();
+        for (int i = 0; i < missIds.size(); i++) {
+            ID id = missIds.get(i);
+            R r = dbResult.get(id);
+            if (r == null) {
+                nullKeys.add((keyPrefix + id).getBytes(StandardCharsets.UTF_8));
+                continue;
+            }
+            result.put(id, r);
+            RedisData redisData = new RedisData();
+            redisData.setData(r);
+            redisData.setExpireTime(expireTime);
+            String token = tokens == null ? null : tokens.get(i);
+            scriptKeys.add(fenceKeys.get(i));
+            scriptKeys.add(keyPrefix + id);
+            scriptArgs.add(token == null ? "0" : token);
+            scriptArgs.add(JSONUtil.toJsonStr(redisData));
+        }
+        if (!scriptKeys.isEmpty()) {
+            stringRedisTemplate.execute(FENCED_MSET_SCRIPT, scriptKeys, scriptArgs.toArray());
+        }
+        if (!nullKeys.isEmpty()) {
+            Expiration nullExpiration = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (byte[] key : nullKeys) {
+                    connection.stringCommands().set(key, new byte[0], nullExpiration, RedisStringCommands.SetOption.UPSERT);
+                }
+                return null;
+            });
+        }
+        // 7、返回
+        return result;
+    }
+
+    /**
+     * 缓存不存在时加载：获取和异步重建相同的互斥锁 lock:{key}，拿到锁后再查一次缓存，仍然不存在才查询数据库，
+     * 同一个key同时只有一个线程查询数据库，其他线程等待后直接读取缓存
+     */
+    private <R, ID> R loadWithMutex(
+            String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        ILock lock = redisLockFactory.getLock(key);
+        boolean locked;
+        try {
+            // 1、获取互斥锁，最多等待 CACHE_LOAD_LOCK_WAIT 秒
+            locked = lock.tryLock(RedisConstants.CACHE_LOAD_LOCK_WAIT, RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待缓存加载被中断：" + key, e);
+        }
+        if (!locked) {
+            // 2、等待超时，持锁线程查询过慢，直接查询数据库返回，不写缓存
+            log.warn("等待缓存加载超时，直接查询数据库：{}", key);
+            return dbFallback.apply(id);
+        }
+        try {
+            // 3、获取锁成功，再次查询缓存，等待期间其他线程已经写入的直接返回
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (json != null) {
+                return StrUtil.isBlank(json) ? null : readWithLogicalExpire(key, id, json, type, dbFallback, time, timeUnit);
+            }
+            // 4、查询数据库并写入，数据库中不存在的写入空值
+            R r = dbFallback.apply(id);
+            if (r == null) {
+                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                return null;
+            }
+            this.setWithLogicalExpire(key, r, time, timeUnit, lock.getFencingToken());
+            return r;
+        } finally {
+            // 释放锁
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 反序列化逻辑过期的缓存，已过期时获取互斥锁后开启独立线程重建，返回过期的数据
+     */
+    private <R, ID> R readWithLogicalExpire(
+            String key, ID id, String json, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
         // 4、命中，需要先把json反序列化为对象
         RedisData redisData = JSONUtil.toBean(json, RedisData.class);
         JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
+        // 重建时数据库中已经不存在的，data为空
+        R r = data == null ? null : JSONUtil.toBean(data, type);
         LocalDateTime expireTime = redisData.getExpireTime();
         // 5、判断是否过期
         if (expireTime.isAfter(LocalDateTime.now())) {
@@ -135,48 +456,60 @@ public class CacheClient {
         }
         // 5.2、已过期，需要重建缓存
         // 6、缓存重建
-        // 6.1、获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2、判断是否获取锁成功
-        if (isLock) {
-            // 6.3、成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+        // 6.1、先在本地登记重建，本JVM已经有线程在重建了就不用再提交重建任务
+        if (!rebuildingKeys.add(key)) {
+            return r;
+        }
+        // 6.2、开启独立线程，获取互斥锁后重建缓存，锁 lock:{key} 同时发放栅栏令牌
+        CACHE_REBUILD_EXECUTOR.submit(() -> {
+            ILock lock = redisLockFactory.getLock(key);
+            try {
+                // 6.3、获取锁失败，说明其他节点正在重建
+                if (!lock.tryLock(RedisConstants.LOCK_SHOP_TTL)) {
+                    return;
+                }
                 try {
-                    // 查询数据库
+                    // 6.4、成功，查询数据库，带令牌写入redis，锁已过期并被其他线程获取时放弃写入
                     R r1 = dbFallback.apply(id);
-                    // 写入redis
-                    this.setWithLogicalExpire(key, r1, time, timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    this.setWithLogicalExpire(key, r1, time, timeUnit, lock.getFencingToken());
                 } finally {
                     // 释放锁
-                    unlock(lockKey);
+                    lock.unlock();
                 }
-            });
-        }
-        // 6.4、失败，返回过期的信息
+            } catch (Exception e) {
+                log.error("缓存重建失败：{}", key, e);
+            } finally {
+                rebuildingKeys.remove(key);
+            }
+        });
+        // 6.5、返回过期的信息
         return r;
     }
 
     /**
-     * 获取锁
+     * 带栅栏令牌的逻辑过期写入，令牌已经过期时不写入
      *
      * @param key
-     * @return
+     * @param value
+     * @param time
+     * @param timeUnit
+     * @param fencingToken 锁 lock:{key} 的栅栏令牌
      */
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
+    private void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit, long fencingToken) {
+        // 设置逻辑过期
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
 
-    /**
-     * 释放锁
-     *
-     * @param key
-     */
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+        // 条件写入Redis
+        Long result = stringRedisTemplate.execute(
+                FENCED_SET_SCRIPT,
+                Arrays.asList(RedisConstants.LOCK_FENCE_KEY + key, key),
+                String.valueOf(fencingToken), JSONUtil.toJsonStr(redisData)
+        );
+        if (result == null || result == 0) {
+            log.warn("缓存重建的锁已过期，放弃写入：{}，令牌：{}", key, fencingToken);
+        }
     }
 
 }
@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * 获取客户端IP，用于按IP限流。默认使用连接的对端地址；只有对端是配置的可信代理时才读取代理转发的请求头，
+ * 否则客户端可以伪造请求头绕过限流
+ */
+@Component
+public class ClientIpResolver {
+
+    /**
+     * 可信代理的地址，支持单个IP或CIDR网段，为空表示不信任任何转发头
+     */
+    private final List<String> trustedProxies;
+
+    public ClientIpResolver(@Value("${hmdp.web.trusted-proxies:}") List<String> trustedProxies) {
+        this.trustedProxies = trustedProxies.stream()
+                .map(String::trim)
+                .filter(StrUtil::isNotEmpty)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 获取客户端IP
+     *
+     * @param request
+     * @return
+     */
+    public String resolve(HttpServletRequest request) {
+        // 1、对端不是可信代理，直接使用对端地址
+        String remoteAddr = request.getRemoteAddr();
+        if (!isTrusted(remoteAddr)) {
+            return remoteAddr;
+        }
+        // 2、X-Forwarded-For 从右往左，跳过可信代理追加的地址，第一个不可信的就是客户端
+        String forwardedFor = request.getHeader("X-Forwarded-For");
+        if (StrUtil.isNotBlank(forwardedFor)) {
+            List<String> hops = StrUtil.splitTrim(forwardedFor, ',');
+            for (int i = hops.size() - 1; i >= 0; i--) {
+                if (!isTrusted(hops.get(i))) {
+                    return hops.get(i);
+                }
+            }
+        }
+        // 3、代理只设置了 X-Real-IP
+        String realIp = request.getHeader("X-Real-IP");
+        return StrUtil.isNotBlank(realIp) ? realIp.trim() : remoteAddr;
+    }
+
+    private boolean isTrusted(String ip) {
+        for (String proxy : trustedProxies) {
+            if (proxy.contains("/") ? isInRange(ip, proxy) : proxy.equals(ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isInRange(String ip, String cidr) {
+        try {
+            return NetUtil.isInRange(ip, cidr);
+        } catch (Exception e) {
+            // 不是IPv4地址
+            return false;
+        }
+    }
+
+}
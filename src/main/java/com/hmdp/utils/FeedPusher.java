@@ -0,0 +1,302 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步推送笔记到粉丝收件箱：按粉丝id游标分页读取粉丝，每页用pipeline一次性发送zadd，不占用请求线程。
+ * 推拉结合：笔记都写入作者的发件箱，粉丝数超过阈值的大V只写发件箱，由粉丝读取时拉取。
+ * 发件箱在发布时同步写入，进程崩溃时丢失的只是排队中的推送，粉丝仍然可以从发件箱重建；推送队列有界，排满时在发布线程中直接推送。
+ * 收件箱和发件箱只保留最近的 FEED_BOX_MAX_SIZE 条；超过 FEED_INACTIVE_DAYS 没有读取过的用户不推送，收件箱截断到 FEED_STALE_INBOX_SIZE 条并标记为过期，
+ * 回来时再从关注的人的发件箱重建。没有活跃记录的用户（例如上线前就存在的用户）按活跃处理
+ */
+@Slf4j
+@Component
+public class FeedPusher {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final FollowMapper followMapper;
+
+    /**
+     * 排队中和推送中的任务数
+     */
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+
+    /**
+     * 统计周期内的最大推送延迟（毫秒）
+     */
+    private final LongAccumulator maxLag = new LongAccumulator(Math::max, 0);
+
+    /**
+     * 统计周期内队列已满、在发布线程中推送的次数
+     */
+    private final LongAdder callerRuns = new LongAdder();
+
+    // 推送线程池
+    private final ExecutorService pushExecutor = new ThreadPoolExecutor(
+            RedisConstants.FEED_PUSH_THREADS, RedisConstants.FEED_PUSH_THREADS,
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(RedisConstants.FEED_PUSH_QUEUE_SIZE));
+
+    // 清理不活跃用户记录、输出推送统计的线程池
+    private final ScheduledExecutorService pruneExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public FeedPusher(StringRedisTemplate stringRedisTemplate, FollowMapper followMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.followMapper = followMapper;
+    }
+
+    @PostConstruct
+    private void init() {
+        pruneExecutor.scheduleWithFixedDelay(this::pruneInactive,
+                RedisConstants.FEED_ACTIVE_PRUNE_INTERVAL, RedisConstants.FEED_ACTIVE_PRUNE_INTERVAL, TimeUnit.MINUTES);
+        pruneExecutor.scheduleAtFixedRate(this::report,
+                RedisConstants.FEED_PUSH_REPORT_INTERVAL, RedisConstants.FEED_PUSH_REPORT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        pruneExecutor.shutdown();
+        pushExecutor.shutdown();
+        if (!pushExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("推送线程池关闭超时，未完成的推送任务：{}", pendingTasks.get());
+        }
+    }
+
+    /**
+     * 同步写入作者的发件箱，再提交推送任务；推送队列已满时在当前线程推送
+     *
+     * @param authorId  笔记作者id
+     * @param blogId    笔记id
+     * @param timestamp 发布时间，作为收件箱中的分数
+     */
+    public void push(Long authorId, Long blogId, long timestamp) {
+        // 1、写入作者的发件箱，只保留最近的笔记
+        String outboxKey = RedisConstants.FEED_OUTBOX_KEY + authorId;
+        stringRedisTemplate.opsForZSet().add(outboxKey, blogId.toString(), timestamp);
+        stringRedisTemplate.opsForZSet().removeRange(outboxKey, 0, -RedisConstants.FEED_BOX_MAX_SIZE - 1);
+        // 2、异步推送到粉丝的收件箱
+        pendingTasks.incrementAndGet();
+        Runnable task = () -> {
+            try {
+                doPush(authorId, blogId, timestamp);
+            } catch (Exception e) {
+                log.error("推送笔记失败，作者：{}，笔记：{}", authorId, blogId, e);
+            } finally {
+                pendingTasks.decrementAndGet();
+            }
+        };
+        try {
+            pushExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // 3、队列已满（或正在关闭），在当前线程推送，不丢弃
+            callerRuns.increment();
+            task.run();
+        }
+    }
+
+    /**
+     * @return 排队中和推送中的任务数，持续增长说明推送跟不上发布
+     */
+    public int getPendingTasks() {
+        return pendingTasks.get();
+    }
+
+    /**
+     * 定时输出推送统计：积压的任务数、最大推送延迟、队列已满时同步推送的次数
+     */
+    private void report() {
+        int pending = getPendingTasks();
+        long lag = maxLag.getThenReset();
+        long runs = callerRuns.sumThenReset();
+        if (pending == 0 && lag == 0 && runs == 0) {
+            return;
+        }
+        if (pending >= RedisConstants.FEED_PUSH_QUEUE_SIZE || lag > RedisConstants.FEED_PUSH_LAG_WARN || runs > 0) {
+            log.warn("推送统计 积压任务：{}，最大延迟：{}ms，队列已满同步推送：{}次", pending, lag, runs);
+        } else {
+            log.info("推送统计 积压任务：{}，最大延迟：{}ms", pending, lag);
+        }
+    }
+
+    /**
+     * 用户读取关注的笔记时调用：记录活跃时间，之前被标记为不活跃的，从关注的人的发件箱重建收件箱
+     *
+     * @param userId
+     */
+    public void touch(Long userId) {
+        String member = userId.toString();
+        // 1、记录活跃时间并取消过期标记（pipeline，一次往返）
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zAdd(RedisConstants.FEED_ACTIVE_KEY.getBytes(StandardCharsets.UTF_8),
+                    System.currentTimeMillis(), member.getBytes(StandardCharsets.UTF_8));
+            connection.setCommands().sRem(RedisConstants.FEED_STALE_KEY.getBytes(StandardCharsets.UTF_8),
+                    member.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+        Long removed = (Long) results.get(1);
+        // 2、收件箱已过期，重建
+        if (removed != null && removed > 0) {
+            rebuildInbox(userId);
+        }
+    }
+
+    /**
+     * 合并关注的人的发件箱，重建收件箱
+     *
+     * @param userId
+     */
+    private void rebuildInbox(Long userId) {
+        String inboxKey = RedisConstants.FEED_KEY + userId;
+        Set<String> followees = stringRedisTemplate.opsForSet().members("follow:" + userId);
+        if (followees == null || followees.isEmpty()) {
+            return;
+        }
+        List<String> outboxKeys = new ArrayList<>(followees.size());
+        followees.forEach(id -> outboxKeys.add(RedisConstants.FEED_OUTBOX_KEY + id));
+        // zunionstore inbox 1+n inbox outbox... aggregate max，收件箱里已有的笔记不会被重复计分
+        stringRedisTemplate.opsForZSet().unionAndStore(inboxKey, outboxKeys, inboxKey, RedisZSetCommands.Aggregate.MAX);
+        stringRedisTemplate.opsForZSet().removeRange(inboxKey, 0, -RedisConstants.FEED_BOX_MAX_SIZE - 1);
+        log.debug("重建收件箱，用户：{}，关注数：{}", userId, followees.size());
+    }
+
+    /**
+     * 长期不活跃的用户标记为过期并截断收件箱，再删除活跃记录。过期标记在用户回来时才取消，删除活跃记录后仍然不会推送
+     */
+    private void pruneInactive() {
+        try {
+            long inactiveBefore = getInactiveBefore();
+            while (true) {
+                // 1、分批读取不活跃的用户 zrangebyscore feed:active 0 inactiveBefore limit 0 n
+                Set<String> userIds = stringRedisTemplate.opsForZSet().rangeByScore(RedisConstants.FEED_ACTIVE_KEY,
+                        0, inactiveBefore, 0, RedisConstants.FEED_PUSH_BATCH_SIZE);
+                if (userIds == null || userIds.isEmpty()) {
+                    break;
+                }
+                // 2、pipeline批量标记为过期、截断收件箱，最后删除活跃记录
+                byte[][] members = userIds.stream()
+                        .map(id -> id.getBytes(StandardCharsets.UTF_8))
+                        .toArray(byte[][]::new);
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    connection.setCommands().sAdd(RedisConstants.FEED_STALE_KEY.getBytes(StandardCharsets.UTF_8), members);
+                    for (String userId : userIds) {
+                        connection.zSetCommands().zRemRange((RedisConstants.FEED_KEY + userId).getBytes(StandardCharsets.UTF_8),
+                                0, -RedisConstants.FEED_STALE_INBOX_SIZE - 1);
+                    }
+                    connection.zSetCommands().zRem(RedisConstants.FEED_ACTIVE_KEY.getBytes(StandardCharsets.UTF_8), members);
+                    return null;
+                });
+                log.debug("标记不活跃用户：{}", userIds.size());
+            }
+        } catch (Exception e) {
+            log.error("清理不活跃用户记录失败", e);
+        }
+    }
+
+    private long getInactiveBefore() {
+        return System.currentTimeMillis() - TimeUnit.DAYS.toMillis(RedisConstants.FEED_INACTIVE_DAYS);
+    }
+
+    private void doPush(Long authorId, Long blogId, long timestamp) {
+        long begin = System.currentTimeMillis();
+        // 1、大V不推送，登记到大V集合，由粉丝读取时拉取。成为大V后不再移出，否则之前没有推送的笔记粉丝就看不到了
+        Integer followers = followMapper.selectCount(new QueryWrapper<Follow>().eq("follow_user_id", authorId));
+        if (followers != null && followers >= RedisConstants.FEED_BIGV_THRESHOLD) {
+            stringRedisTemplate.opsForSet().add(RedisConstants.FEED_BIGV_KEY, authorId.toString());
+            log.debug("大V笔记只写入发件箱，笔记：{}，粉丝数：{}", blogId, followers);
+            return;
+        }
+        byte[] member = blogId.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] activeKey = RedisConstants.FEED_ACTIVE_KEY.getBytes(StandardCharsets.UTF_8);
+        byte[] staleKey = RedisConstants.FEED_STALE_KEY.getBytes(StandardCharsets.UTF_8);
+        long inactiveBefore = getInactiveBefore();
+        long lastUserId = 0;
+        int total = 0;
+        int skipped = 0;
+        while (true) {
+            // 2、游标分页查询粉丝 select user_id from tb_follow where follow_user_id = ? and user_id > ? limit ?
+            List<Long> followerIds = followMapper.queryFollowerIds(authorId, lastUserId, RedisConstants.FEED_PUSH_BATCH_SIZE);
+            if (followerIds.isEmpty()) {
+                break;
+            }
+            // 3、pipeline批量查询粉丝的活跃时间和过期标记
+            List<Object> states = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long followerId : followerIds) {
+                    byte[] id = followerId.toString().getBytes(StandardCharsets.UTF_8);
+                    connection.zSetCommands().zScore(activeKey, id);
+                    connection.setCommands().sIsMember(staleKey, id);
+                }
+                return null;
+            });
+            // 4、pipeline批量推送到活跃粉丝（包括没有活跃记录的）的收件箱并截断；
+            // 已过期的粉丝跳过，刚超过不活跃期限的截断收件箱并标记为过期
+            List<byte[]> staleIds = new ArrayList<>();
+            int[] skippedInBatch = new int[1];
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < followerIds.size(); i++) {
+                    Long followerId = followerIds.get(i);
+                    byte[] key = (RedisConstants.FEED_KEY + followerId).getBytes(StandardCharsets.UTF_8);
+                    Double seen = (Double) states.get(2 * i);
+                    if (Boolean.TRUE.equals(states.get(2 * i + 1))) {
+                        skippedInBatch[0]++;
+                        continue;
+                    }
+                    if (seen != null && seen < inactiveBefore) {
+                        connection.zSetCommands().zRemRange(key, 0, -RedisConstants.FEED_STALE_INBOX_SIZE - 1);
+                        staleIds.add(followerId.toString().getBytes(StandardCharsets.UTF_8));
+                        skippedInBatch[0]++;
+                        continue;
+                    }
+                    connection.zSetCommands().zAdd(key, timestamp, member);
+                    connection.zSetCommands().zRemRange(key, 0, -RedisConstants.FEED_BOX_MAX_SIZE - 1);
+                }
+                if (!staleIds.isEmpty()) {
+                    connection.setCommands().sAdd(staleKey, staleIds.toArray(new byte[0][]));
+                }
+                return null;
+            });
+            total += followerIds.size();
+            skipped += skippedInBatch[0];
+            // 5、不足一页，说明已经是最后一页
+            if (followerIds.size() < RedisConstants.FEED_PUSH_BATCH_SIZE) {
+                break;
+            }
+            lastUserId = followerIds.get(followerIds.size() - 1);
+        }
+        // 6、记录推送延迟：排队时间 + 推送耗时
+        long end = System.currentTimeMillis();
+        long lag = end - timestamp;
+        maxLag.accumulate(lag);
+        if (lag > RedisConstants.FEED_PUSH_LAG_WARN) {
+            log.warn("推送笔记延迟过高，笔记：{}，粉丝数：{}，不活跃：{}，延迟：{}ms，推送耗时：{}ms，排队任务：{}",
+                    blogId, total, skipped, lag, end - begin, pendingTasks.get() - 1);
+        } else {
+            log.debug("推送笔记完成，笔记：{}，粉丝数：{}，不活跃：{}，延迟：{}ms，推送耗时：{}ms",
+                    blogId, total, skipped, lag, end - begin);
+        }
+    }
+
+}
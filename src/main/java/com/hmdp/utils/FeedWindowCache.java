@@ -0,0 +1,159 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+
+/**
+ * 关注笔记的本地窗口缓存：每次从redis读取 FEED_WINDOW_SIZE 条（已归并的收件箱和大V发件箱），按用户缓存在本地，
+ * 连续滚动的后续分页直接从窗口中截取；窗口快用完时异步预取下一个窗口。
+ * 窗口只保存笔记id和时间戳，笔记内容、点赞数等每次仍然实时查询；刷新（max为当前时间）总是重新读取redis
+ */
+@Slf4j
+@Component
+public class FeedWindowCache {
+
+    /**
+     * 本节点最近读取过关注笔记的用户的窗口，过期时间短，新关注、取关的影响很快消失
+     */
+    private final LRUCache<Long, Window> windows = CacheUtil.newLRUCache(
+            RedisConstants.FEED_WINDOW_CACHE_CAPACITY, TimeUnit.SECONDS.toMillis(RedisConstants.FEED_WINDOW_TTL));
+
+    // 预取线程池，预取只是优化，排满了直接放弃
+    private final ExecutorService prefetchExecutor = new ThreadPoolExecutor(
+            RedisConstants.FEED_PREFETCH_THREADS, RedisConstants.FEED_PREFETCH_THREADS,
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(RedisConstants.FEED_PREFETCH_QUEUE_SIZE));
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    /**
+     * 读取一页关注的笔记，窗口未命中时用loader同步读取一个窗口
+     *
+     * @param userId 当前用户id
+     * @param max    上一页的最小时间戳，第一页为当前时间
+     * @param offset 上一页中与最小时间戳相同的条数
+     * @param count  每页条数
+     * @param loader 从redis读取窗口：(max, offset) -> 按时间戳倒序的 FEED_WINDOW_SIZE 条
+     * @return 本页的笔记id和时间戳，按时间戳倒序
+     */
+    public List<ZSetOperations.TypedTuple<String>> read(Long userId, long max, int offset, int count,
+                                                         BiFunction<Long, Integer, List<ZSetOperations.TypedTuple<String>>> loader) {
+        // 1、从本地窗口截取，不加载、不刷新过期时间
+        Window window = windows.get(userId, false);
+        int start = window == null ? -1 : window.indexOf(max, offset);
+        if (start < 0 || !window.covers(start + count)) {
+            // 2、未命中，同步读取以本页为起点的窗口
+            window = new Window(max, offset, loader.apply(max, offset));
+            windows.put(userId, window);
+            start = 0;
+        }
+        int end = Math.min(start + count, window.entries.size());
+        // 3、窗口快用完了，异步预取以下一页为起点的窗口
+        if (!window.exhausted && window.entries.size() - end <= RedisConstants.FEED_WINDOW_PREFETCH_REMAINING) {
+            prefetch(userId, window, end, loader);
+        }
+        return start >= end ? Collections.emptyList() : window.entries.subList(start, end);
+    }
+
+    private void prefetch(Long userId, Window window, int from,
+                          BiFunction<Long, Integer, List<ZSetOperations.TypedTuple<String>>> loader) {
+        // 同一个窗口只预取一次
+        if (from == 0 || !window.prefetching.compareAndSet(false, true)) {
+            return;
+        }
+        // 下一个窗口的起点：已读的最后一条的时间戳，以及已读中与它相同的条数
+        long max = window.entries.get(from - 1).getScore().longValue();
+        int offset = 0;
+        for (int i = from - 1; i >= 0 && window.entries.get(i).getScore().longValue() == max; i--) {
+            offset++;
+        }
+        if (offset == from && max == window.max) {
+            offset += window.offset;
+        }
+        long nextMax = max;
+        int nextOffset = offset;
+        try {
+            prefetchExecutor.execute(() -> {
+                try {
+                    Window next = new Window(nextMax, nextOffset, loader.apply(nextMax, nextOffset));
+                    // 期间用户刷新过，窗口已经被替换的不再覆盖
+                    if (windows.get(userId, false) == window) {
+                        windows.put(userId, next);
+                    }
+                } catch (Exception e) {
+                    log.warn("预取关注的笔记失败，用户：{}", userId, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("预取任务已满，跳过预取，用户：{}", userId);
+        }
+    }
+
+    /**
+     * 从(max, offset)开始、按时间戳倒序的一段连续的笔记
+     */
+    private static class Window {
+        private final long max;
+        private final int offset;
+        private final List<ZSetOperations.TypedTuple<String>> entries;
+        /**
+         * 读取的条数不足一个窗口，说明后面已经没有了
+         */
+        private final boolean exhausted;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        private Window(long max, int offset, List<ZSetOperations.TypedTuple<String>> entries) {
+            this.max = max;
+            this.offset = offset;
+            this.entries = entries;
+            this.exhausted = entries.size() < RedisConstants.FEED_WINDOW_SIZE;
+        }
+
+        /**
+         * 游标(max, offset)在窗口中的位置
+         *
+         * @return 位置，不在窗口中返回-1
+         */
+        private int indexOf(long max, int offset) {
+            // 1、比窗口起点新，例如刷新
+            if (max > this.max) {
+                return -1;
+            }
+            // 2、时间戳相同，窗口起点已经跳过了 this.offset 条
+            if (max == this.max) {
+                return offset >= this.offset ? offset - this.offset : -1;
+            }
+            // 3、窗口中第一条不大于max的，再跳过offset条（跳过的都是时间戳等于max的）
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i).getScore().longValue() <= max) {
+                    return i + offset;
+                }
+            }
+            return exhausted ? entries.size() : -1;
+        }
+
+        /**
+         * 窗口是否包含截至end的所有笔记
+         */
+        private boolean covers(int end) {
+            return end <= entries.size() || exhausted;
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 热门笔记排行榜：zset blog:hot，分数为点赞数，点赞时实时更新（like_toggle.lua），定期按数据库中的点赞数加上还没有落库的增量校正。
+ * 校正时每一批和计数落库使用同一把分布式锁，读取的数据库点赞数和增量不会被落库拆开；每个周期只有一个节点校正
+ */
+@Slf4j
+@Component
+public class HotBlogRanking {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final BlogMapper blogMapper;
+
+    private final RedisLockFactory redisLockFactory;
+
+    private static final DefaultRedisScript<Long> HOT_RECONCILE_SCRIPT;
+
+    static {
+        HOT_RECONCILE_SCRIPT = new DefaultRedisScript<>();
+        HOT_RECONCILE_SCRIPT.setLocation(new ClassPathResource("hot_reconcile.lua"));
+        HOT_RECONCILE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 校正线程池
+    private final ScheduledExecutorService reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public HotBlogRanking(StringRedisTemplate stringRedisTemplate, BlogMapper blogMapper,
+                          RedisLockFactory redisLockFactory) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.blogMapper = blogMapper;
+        this.redisLockFactory = redisLockFactory;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 启动时先校正一次，排行榜为空时完成初始化
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcile,
+                0, RedisConstants.BLOG_HOT_RECONCILE_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reconcileExecutor.shutdown();
+    }
+
+    /**
+     * 新发布的笔记加入排行榜
+     *
+     * @param blogId
+     */
+    public void add(Long blogId) {
+        stringRedisTemplate.opsForZSet().add(RedisConstants.BLOG_HOT_KEY, blogId.toString(), 0);
+    }
+
+    /**
+     * 按排名分页查询 zrevrange blog:hot start end withscores
+     *
+     * @param start 起始排名，从0开始
+     * @param count 数量
+     * @return 笔记id和点赞数，按点赞数倒序
+     */
+    public Set<ZSetOperations.TypedTuple<String>> range(long start, int count) {
+        return stringRedisTemplate.opsForZSet()
+                .reverseRangeWithScores(RedisConstants.BLOG_HOT_KEY, start, start + count - 1);
+    }
+
+    /**
+     * 移除已经不存在的笔记
+     *
+     * @param blogIds
+     */
+    public void remove(Collection<Long> blogIds) {
+        if (blogIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.BLOG_HOT_KEY,
+                blogIds.stream().map(String::valueOf).toArray());
+    }
+
+    /**
+     * 定时校正，多个节点中本周期第一个执行的节点校正
+     */
+    private void reconcile() {
+        // 本周期其他节点已经校正过，跳过
+        Boolean first = stringRedisTemplate.opsForValue().setIfAbsent(RedisConstants.BLOG_HOT_RECONCILED_KEY, "1",
+                RedisConstants.BLOG_HOT_RECONCILE_INTERVAL, TimeUnit.MINUTES);
+        if (!Boolean.TRUE.equals(first)) {
+            return;
+        }
+        try {
+            doReconcile();
+        } catch (InterruptedException e) {
+            stringRedisTemplate.delete(RedisConstants.BLOG_HOT_RECONCILED_KEY);
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // 校正失败，允许下次由任意节点重新校正
+            stringRedisTemplate.delete(RedisConstants.BLOG_HOT_RECONCILED_KEY);
+            log.error("校正热门笔记排行榜失败", e);
+        }
+    }
+
+    /**
+     * 按id游标分页读取数据库中的点赞数，用脚本原子地按差值修正排行榜中的分数。
+     * 每一批在计数落库的锁内执行，读取的数据库点赞数和增量不会被落库拆开；批次之间释放锁，不阻塞落库
+     */
+    private void doReconcile() throws InterruptedException {
+        long begin = System.currentTimeMillis();
+        List<String> keys = Arrays.asList(RedisConstants.BLOG_HOT_KEY,
+                RedisConstants.BLOG_LIKED_DELTA_KEY, RedisConstants.BLOG_LIKED_FLUSHING_KEY);
+        long lastId = 0;
+        int total = 0;
+        long corrected = 0;
+        while (true) {
+            ILock lock = redisLockFactory.getLock(RedisConstants.BLOG_COUNTER_FLUSH_LOCK);
+            // 1、等待正在进行的落库完成，看门狗续期
+            if (!lock.tryLock(RedisConstants.BLOG_HOT_RECONCILE_LOCK_WAIT, -1, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("等待计数落库锁超时");
+            }
+            List<Blog> blogs;
+            try {
+                // 2、select id, liked from tb_blog where id > ? order by id limit ?
+                blogs = blogMapper.selectList(new QueryWrapper<Blog>()
+                        .select("id", "liked")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + RedisConstants.BLOG_HOT_RECONCILE_BATCH_SIZE));
+                if (blogs.isEmpty()) {
+                    break;
+                }
+                // 3、执行lua脚本，加上还没有落库的增量后按差值修正
+                List<String> args = new ArrayList<>(blogs.size() * 2);
+                for (Blog blog : blogs) {
+                    args.add(blog.getId().toString());
+                    args.add(String.valueOf(blog.getLiked() == null ? 0 : blog.getLiked()));
+                }
+                Long n = stringRedisTemplate.execute(HOT_RECONCILE_SCRIPT, keys, args.toArray());
+                corrected += n == null ? 0 : n;
+            } finally {
+                lock.unlock();
+            }
+            total += blogs.size();
+            if (blogs.size() < RedisConstants.BLOG_HOT_RECONCILE_BATCH_SIZE) {
+                break;
+            }
+            lastId = blogs.get(blogs.size() - 1).getId();
+        }
+        log.debug("校正热门笔记排行榜完成，笔记数：{}，修正：{}，耗时：{}ms", total, corrected, System.currentTimeMillis() - begin);
+    }
+
+}
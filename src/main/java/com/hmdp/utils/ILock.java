@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
 
     /**
@@ -10,6 +12,25 @@ public interface ILock {
      */
     boolean tryLock(long timeoutSec);
 
+    /**
+     * 在等待时间内尝试获取锁，同一线程可重入
+     *
+     * @param waitTime  最长等待时间，0代表获取失败立即返回
+     * @param leaseTime 锁持有的超时时间，-1代表由看门狗自动续期，直到释放锁
+     * @param unit      时间单位
+     * @return true代表获取锁成功，false代表等待超时
+     * @throws InterruptedException 等待期间线程被中断
+     */
+    boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * 获取锁时从redis计数器发放的栅栏令牌，单调递增。
+     * 受锁保护的写操作带上令牌做条件写，持锁线程因GC停顿等原因锁过期后，它的写入会因为令牌过期被拒绝
+     *
+     * @return 最近一次获取锁成功时拿到的令牌，从未获取成功时为0
+     */
+    long getFencingToken();
+
     /**
      * 释放锁
      */
@@ -0,0 +1,159 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 分布式锁的统计：获取耗时、失败次数、持有时长分布、竞争最激烈的锁，定期输出到日志
+ */
+@Slf4j
+@Component
+public class LockMetrics {
+
+    /**
+     * 持有时长直方图的桶上限（毫秒），最后一个桶收集所有更长的
+     */
+    private static final long[] HOLD_BUCKETS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+
+    /**
+     * 每个报告周期输出的竞争最激烈的锁的个数
+     */
+    private static final int TOP_N = 10;
+
+    // 统计报告线程池
+    private final ScheduledExecutorService reportExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 按锁的类型统计，类型是锁名称最后一个冒号之前的部分，例如 order:1010 的类型是 order
+     */
+    private final Map<String, TypeStats> typeStats = new ConcurrentHashMap<>();
+
+    /**
+     * 按锁的名称统计获取失败的次数，每个报告周期清空一次，避免无限增长
+     */
+    private final Map<String, LongAdder> contended = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        reportExecutor.scheduleAtFixedRate(this::report,
+                RedisConstants.LOCK_METRICS_REPORT_INTERVAL, RedisConstants.LOCK_METRICS_REPORT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reportExecutor.shutdown();
+    }
+
+    /**
+     * 记录一次获取锁
+     *
+     * @param name         锁的名称
+     * @param elapsedNanos 获取锁的耗时
+     * @param success      是否获取成功
+     */
+    public void recordAcquire(String name, long elapsedNanos, boolean success) {
+        TypeStats stats = getTypeStats(name);
+        stats.acquireCount.increment();
+        stats.acquireNanos.add(elapsedNanos);
+        if (!success) {
+            stats.failureCount.increment();
+            contended.computeIfAbsent(name, k -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * 记录一次锁的持有时长，超过阈值时打印持有者的调用栈
+     *
+     * @param name       锁的名称
+     * @param holdMillis 持有时长
+     */
+    public void recordHold(String name, long holdMillis) {
+        TypeStats stats = getTypeStats(name);
+        int i = 0;
+        while (i < HOLD_BUCKETS.length && holdMillis > HOLD_BUCKETS[i]) {
+            i++;
+        }
+        stats.holdBuckets[i].increment();
+        if (holdMillis >= RedisConstants.LOCK_SLOW_HOLD_THRESHOLD) {
+            log.warn("锁持有时间过长：{}，持有{}毫秒", name, holdMillis, new Throwable("slow lock holder"));
+        }
+    }
+
+    /**
+     * 获取锁失败次数最多的锁
+     *
+     * @param n
+     * @return 锁的名称 -> 失败次数
+     */
+    public List<Map.Entry<String, Long>> topContended(int n) {
+        return contended.entrySet().stream()
+                .map(e -> new AbstractMap.SimpleEntry<>(e.getKey(), e.getValue().sum()))
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(n)
+                .collect(Collectors.toList());
+    }
+
+    private TypeStats getTypeStats(String name) {
+        int i = name.lastIndexOf(':');
+        String type = i > 0 ? name.substring(0, i) : name;
+        return typeStats.computeIfAbsent(type, k -> new TypeStats());
+    }
+
+    private void report() {
+        try {
+            List<String> types = new ArrayList<>(typeStats.keySet());
+            types.sort(Comparator.naturalOrder());
+            for (String type : types) {
+                TypeStats stats = typeStats.get(type);
+                long count = stats.acquireCount.sum();
+                if (count == 0) {
+                    continue;
+                }
+                StringBuilder histogram = new StringBuilder();
+                for (int i = 0; i < stats.holdBuckets.length; i++) {
+                    histogram.append(i < HOLD_BUCKETS.length ? "<=" + HOLD_BUCKETS[i] : ">" + HOLD_BUCKETS[HOLD_BUCKETS.length - 1])
+                            .append("ms:").append(stats.holdBuckets[i].sum()).append(' ');
+                }
+                log.info("锁统计[{}] 获取{}次，失败{}次，平均获取耗时{}微秒，持有时长分布 {}",
+                        type, count, stats.failureCount.sum(),
+                        stats.acquireNanos.sum() / count / 1000, histogram.toString().trim());
+            }
+            List<Map.Entry<String, Long>> top = topContended(TOP_N);
+            if (!top.isEmpty()) {
+                log.info("竞争最激烈的锁：{}", top);
+            }
+        } catch (Exception e) {
+            log.error("输出锁统计异常", e);
+        } finally {
+            contended.clear();
+        }
+    }
+
+    private static class TypeStats {
+        private final LongAdder acquireCount = new LongAdder();
+        private final LongAdder failureCount = new LongAdder();
+        private final LongAdder acquireNanos = new LongAdder();
+        private final LongAdder[] holdBuckets = new LongAdder[HOLD_BUCKETS.length + 1];
+
+        TypeStats() {
+            for (int i = 0; i < holdBuckets.length; i++) {
+                holdBuckets[i] = new LongAdder();
+            }
+        }
+    }
+
+}
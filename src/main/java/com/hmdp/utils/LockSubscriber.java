@@ -0,0 +1,86 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 订阅锁释放的消息，唤醒本JVM中等待同一把锁的线程，代替轮询重试
+ */
+@Component
+public class LockSubscriber implements MessageListener {
+
+    /**
+     * 每把锁的等待者，key是释放锁时发布消息的频道
+     */
+    private final Map<String, WaitEntry> entries = new ConcurrentHashMap<>();
+
+    public LockSubscriber(RedisMessageListenerContainer container) {
+        container.addMessageListener(this, new PatternTopic(RedisConstants.LOCK_CHANNEL_PREFIX + "*"));
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        WaitEntry entry = entries.get(channel);
+        if (entry != null) {
+            // 锁已释放，唤醒一个等待的线程去抢锁
+            entry.latch.release();
+        }
+    }
+
+    /**
+     * 登记为某把锁的等待者，必须在抢锁之前登记，避免错过释放消息
+     *
+     * @param channel
+     */
+    void subscribe(String channel) {
+        entries.compute(channel, (k, entry) -> {
+            if (entry == null) {
+                entry = new WaitEntry();
+            }
+            entry.waiters++;
+            return entry;
+        });
+    }
+
+    /**
+     * 取消登记，最后一个等待者离开时删除记录
+     *
+     * @param channel
+     */
+    void unsubscribe(String channel) {
+        entries.computeIfPresent(channel, (k, entry) -> --entry.waiters == 0 ? null : entry);
+    }
+
+    /**
+     * 等待锁释放的消息，或者等到超时
+     *
+     * @param channel
+     * @param time
+     * @param unit
+     * @return true代表收到了锁释放的消息
+     * @throws InterruptedException
+     */
+    boolean await(String channel, long time, TimeUnit unit) throws InterruptedException {
+        WaitEntry entry = entries.get(channel);
+        if (entry == null) {
+            return false;
+        }
+        return entry.latch.tryAcquire(time, unit);
+    }
+
+    private static class WaitEntry {
+        private final Semaphore latch = new Semaphore(0);
+        private int waiters;
+    }
+
+}
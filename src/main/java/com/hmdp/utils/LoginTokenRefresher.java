@@ -0,0 +1,85 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量刷新token有效期：请求线程只登记需要续期的token，后台线程定时用pipeline一次性发送所有expire命令
+ */
+@Slf4j
+@Component
+public class LoginTokenRefresher {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 等待续期的token，重复登记只续期一次
+     */
+    private final Set<String> pendingTokens = ConcurrentHashMap.newKeySet();
+
+    // 续期线程池
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public LoginTokenRefresher(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        refreshExecutor.scheduleWithFixedDelay(this::flush,
+                RedisConstants.LOGIN_USER_REFRESH_INTERVAL, RedisConstants.LOGIN_USER_REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdown();
+        flush();
+    }
+
+    /**
+     * 登记需要续期的token
+     *
+     * @param token
+     */
+    public void refresh(String token) {
+        pendingTokens.add(token);
+    }
+
+    private void flush() {
+        if (pendingTokens.isEmpty()) {
+            return;
+        }
+        List<String> tokens = new ArrayList<>(pendingTokens);
+        tokens.forEach(pendingTokens::remove);
+        long ttlSeconds = TimeUnit.MINUTES.toSeconds(RedisConstants.LOGIN_USER_TTL);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String token : tokens) {
+                    expire(connection, RedisConstants.LOGIN_USER_KEY + token, ttlSeconds);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("批量刷新token有效期失败，数量：{}", tokens.size(), e);
+        }
+    }
+
+    private void expire(RedisConnection connection, String key, long ttlSeconds) {
+        connection.keyCommands().expire(key.getBytes(StandardCharsets.UTF_8), ttlSeconds);
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 登录用户的本地缓存（token -> 登录会话），命中时请求不需要访问redis。
+ * 登出或者用户信息变更时通过redis的pub/sub通知所有节点删除；按用户删除时通过用户id到token的索引定位，不遍历整个缓存
+ */
+@Slf4j
+@Component
+public class LoginUserCache implements MessageListener {
+
+    private static final String TOKEN_MESSAGE_PREFIX = "token:";
+    private static final String USER_MESSAGE_PREFIX = "user:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final LRUCache<String, LoginSession> cache = CacheUtil.newLRUCache(
+            RedisConstants.LOGIN_USER_LOCAL_CAPACITY,
+            TimeUnit.SECONDS.toMillis(RedisConstants.LOGIN_USER_LOCAL_TTL));
+
+    /**
+     * 用户id -> 本地缓存中该用户的token。缓存淘汰、过期时不会通知，索引中残留的token由定时任务清理
+     */
+    private final Map<Long, Set<String>> userTokens = new ConcurrentHashMap<>();
+
+    // 清理索引的线程池
+    private final ScheduledExecutorService cleanExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public LoginUserCache(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        container.addMessageListener(this, new ChannelTopic(RedisConstants.LOGIN_USER_INVALIDATE_CHANNEL));
+    }
+
+    @PostConstruct
+    private void init() {
+        cleanExecutor.scheduleWithFixedDelay(this::cleanIndex,
+                RedisConstants.LOGIN_USER_LOCAL_TTL, RedisConstants.LOGIN_USER_LOCAL_TTL, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        cleanExecutor.shutdownNow();
+    }
+
+    /**
+     * 查询本地缓存，不刷新过期时间，保证最多缓存 LOGIN_USER_LOCAL_TTL
+     *
+     * @param token
+     * @return 未命中返回null
+     */
+    public LoginSession get(String token) {
+        return cache.get(token, false);
+    }
+
+    /**
+     * 缓存登录会话
+     *
+     * @param token
+     * @param userDTO
+     * @param expireAt redis中token的过期时间（毫秒时间戳）
+     * @return
+     */
+    public LoginSession put(String token, UserDTO userDTO, long expireAt) {
+        LoginSession session = new LoginSession(userDTO, expireAt);
+        cache.put(token, session);
+        // 登记到用户的token索引，和按用户删除互斥
+        userTokens.compute(userDTO.getId(), (userId, tokens) -> {
+            if (tokens == null) {
+                tokens = ConcurrentHashMap.newKeySet();
+            }
+            tokens.add(token);
+            return tokens;
+        });
+        return session;
+    }
+
+    /**
+     * 通知所有节点删除某个token的缓存
+     *
+     * @param token
+     */
+    public void invalidateToken(String token) {
+        cache.remove(token);
+        stringRedisTemplate.convertAndSend(RedisConstants.LOGIN_USER_INVALIDATE_CHANNEL, TOKEN_MESSAGE_PREFIX + token);
+    }
+
+    /**
+     * 通知所有节点删除某个用户所有token的缓存，用于用户信息变更
+     *
+     * @param userId
+     */
+    public void invalidateUser(Long userId) {
+        removeUser(userId);
+        stringRedisTemplate.convertAndSend(RedisConstants.LOGIN_USER_INVALIDATE_CHANNEL, USER_MESSAGE_PREFIX + userId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(TOKEN_MESSAGE_PREFIX)) {
+                cache.remove(body.substring(TOKEN_MESSAGE_PREFIX.length()));
+            } else if (body.startsWith(USER_MESSAGE_PREFIX)) {
+                removeUser(Long.valueOf(body.substring(USER_MESSAGE_PREFIX.length())));
+            }
+        } catch (Exception e) {
+            log.error("处理登录缓存失效消息异常：{}", body, e);
+        }
+    }
+
+    private void removeUser(Long userId) {
+        // 只删除索引中该用户的token，已经不在缓存中的token删除时忽略
+        Set<String> tokens = userTokens.remove(userId);
+        if (tokens != null) {
+            tokens.forEach(cache::remove);
+        }
+    }
+
+    /**
+     * 清理索引中已经被淘汰、过期或单独删除的token，没有token的用户删除索引
+     */
+    private void cleanIndex() {
+        try {
+            for (Long userId : userTokens.keySet()) {
+                userTokens.computeIfPresent(userId, (k, tokens) -> {
+                    tokens.removeIf(token -> cache.get(token, false) == null);
+                    return tokens.isEmpty() ? null : tokens;
+                });
+            }
+        } catch (Exception e) {
+            log.error("清理登录缓存索引失败", e);
+        }
+    }
+
+    /**
+     * 登录会话：用户信息和token在redis中的过期时间
+     */
+    public static class LoginSession {
+        private final UserDTO user;
+        private volatile long expireAt;
+
+        LoginSession(UserDTO user, long expireAt) {
+            this.user = user;
+            this.expireAt = expireAt;
+        }
+
+        public UserDTO getUser() {
+            return user;
+        }
+
+        /**
+         * 剩余有效期低于阈值时才需要续期
+         *
+         * @param now
+         * @return
+         */
+        public boolean needsRefresh(long now) {
+            return expireAt - now < TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_REFRESH_THRESHOLD);
+        }
+
+        public void refreshed(long now) {
+            this.expireAt = now + TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_TTL);
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 带统计的锁，包装任意ILock，记录获取耗时、失败次数和持有时长
+ */
+public class MonitoredLock implements ILock {
+
+    private final String name;
+    private final ILock delegate;
+    private final LockMetrics lockMetrics;
+
+    /**
+     * 重入深度，回到0时才算一次完整的持有
+     */
+    private int holdDepth;
+    private long holdStartNanos;
+
+    public MonitoredLock(String name, ILock delegate, LockMetrics lockMetrics) {
+        this.name = name;
+        this.delegate = delegate;
+        this.lockMetrics = lockMetrics;
+    }
+
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        long begin = System.nanoTime();
+        boolean success = delegate.tryLock(timeoutSec);
+        afterAcquire(begin, success);
+        return success;
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long begin = System.nanoTime();
+        boolean success = delegate.tryLock(waitTime, leaseTime, unit);
+        afterAcquire(begin, success);
+        return success;
+    }
+
+    @Override
+    public long getFencingToken() {
+        return delegate.getFencingToken();
+    }
+
+    @Override
+    public void unlock() {
+        delegate.unlock();
+        if (holdDepth > 0 && --holdDepth == 0) {
+            lockMetrics.recordHold(name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - holdStartNanos));
+        }
+    }
+
+    private void afterAcquire(long begin, boolean success) {
+        long now = System.nanoTime();
+        lockMetrics.recordAcquire(name, now - begin, success);
+        if (success && holdDepth++ == 0) {
+            holdStartNanos = now;
+        }
+    }
+
+}
@@ -3,20 +3,103 @@ package com.hmdp.utils;
 public class RedisConstants {
     public static final String LOGIN_CODE_KEY = "login:code:";
     public static final Long LOGIN_CODE_TTL = 2L;
+    public static final String LOGIN_CODE_ATTEMPTS_KEY = "login:code:attempts:";
+    public static final int LOGIN_CODE_MAX_ATTEMPTS = 3;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 30L;
+    public static final String LOGIN_USER_INVALIDATE_CHANNEL = "login:invalidate";
+    public static final Long LOGIN_USER_LOCAL_TTL = 60L;
+    public static final int LOGIN_USER_LOCAL_CAPACITY = 100000;
+    public static final Long LOGIN_USER_REFRESH_THRESHOLD = 20L;
+    public static final Long LOGIN_USER_REFRESH_INTERVAL = 1000L;
+    public static final Long LOGIN_SIGNED_TOKEN_TTL = 24 * 60L;
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKED_CHANNEL = "login:revoked:notify";
+    public static final Long LOGIN_REVOKED_RELOAD_INTERVAL = 60L;
+
+    public static final String LIMIT_CODE_PHONE_KEY = "limit:code:phone:";
+    public static final String LIMIT_CODE_IP_KEY = "limit:code:ip:";
+    public static final String LIMIT_LOGIN_PHONE_KEY = "limit:login:phone:";
+    public static final Long LIMIT_CODE_INTERVAL = 60L;
+    public static final int LIMIT_CODE_PHONE_HOURLY = 5;
+    public static final int LIMIT_CODE_IP_HOURLY = 20;
+    public static final int LIMIT_LOGIN_ATTEMPTS = 5;
+    public static final Long LIMIT_LOGIN_WINDOW = 10L;
+    public static final int LIMIT_CODE_LOCAL_CAPACITY = 100000;
+    public static final Long LIMIT_REPORT_INTERVAL = 60L;
 
     public static final Long CACHE_NULL_TTL = 2L;
+    public static final Long CACHE_LOAD_LOCK_WAIT = 3L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    public static final Long CACHE_COMMENTS_TTL = 5L;
+    public static final String CACHE_COMMENTS_KEY = "cache:comments:";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CHANNEL_PREFIX = "lock:channel:";
+    public static final String LOCK_FENCE_KEY = "lock:fence:";
+    public static final Long LOCK_FENCE_TTL = 24L;
+    public static final Long LOCK_FENCE_CLEAN_INTERVAL = 60L;
+    public static final int LOCK_FENCE_CLEAN_BATCH_SIZE = 1000;
+    public static final String LOCK_ORDER_NAME = "order:";
+    public static final Long LOCK_ORDER_TTL = 5L;
+    public static final Long LOCK_SLOW_HOLD_THRESHOLD = 1000L;
+    public static final Long LOCK_METRICS_REPORT_INTERVAL = 60L;
+    public static final Long LOCK_WATCH_DOG_TTL = 30000L;
+    public static final Long LOCK_POLL_INTERVAL = 100L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final Long BLOG_HOT_RECONCILE_INTERVAL = 10L;
+    public static final String BLOG_HOT_RECONCILED_KEY = "blog:hot:reconciled";
+    public static final Long BLOG_HOT_RECONCILE_LOCK_WAIT = 30L;
+    public static final int BLOG_HOT_RECONCILE_BATCH_SIZE = 1000;
+    public static final String BLOG_LIKED_DELTA_KEY = "blog:liked:delta";
+    public static final String BLOG_LIKED_FLUSHING_KEY = "blog:liked:delta:flushing";
+    public static final String BLOG_LIKED_FLUSH_FENCE = "blog:liked:flush";
+    public static final String BLOG_COUNTER_FLUSH_LOCK = "blog:counter:flush";
+    public static final String BLOG_COUNTER_SEQ_KEY = "blog:counter:seq";
+    public static final Long BLOG_COUNTER_FLUSH_INTERVAL = 5L;
+    public static final int BLOG_COUNTER_FLUSH_BATCH_SIZE = 500;
+    public static final String BLOG_COMMENTS_DELTA_KEY = "blog:comments:delta";
+    public static final String BLOG_COMMENTS_FLUSHING_KEY = "blog:comments:delta:flushing";
+    public static final String BLOG_COMMENTS_FLUSH_FENCE = "blog:comments:flush";
     public static final String FEED_KEY = "feed:";
+    public static final int FEED_PUSH_BATCH_SIZE = 1000;
+    public static final int FEED_PUSH_THREADS = 4;
+    public static final Long FEED_PUSH_LAG_WARN = 5000L;
+    public static final int FEED_PUSH_QUEUE_SIZE = 10000;
+    public static final Long FEED_PUSH_REPORT_INTERVAL = 60L;
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIGV_KEY = "feed:bigv";
+    public static final int FEED_BIGV_THRESHOLD = 10000;
+    public static final long FEED_BOX_MAX_SIZE = 1000L;
+    public static final String FEED_ACTIVE_KEY = "feed:active";
+    public static final String FEED_STALE_KEY = "feed:stale";
+    public static final Long FEED_INACTIVE_DAYS = 30L;
+    public static final long FEED_STALE_INBOX_SIZE = 100L;
+    public static final Long FEED_ACTIVE_PRUNE_INTERVAL = 60L;
+    public static final int FEED_WINDOW_SIZE = 50;
+    public static final int FEED_WINDOW_PREFETCH_REMAINING = 10;
+    public static final Long FEED_WINDOW_TTL = 60L;
+    public static final int FEED_WINDOW_CACHE_CAPACITY = 10000;
+    public static final int FEED_PREFETCH_THREADS = 2;
+    public static final int FEED_PREFETCH_QUEUE_SIZE = 1000;
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+
+    public static final Long ID_SEGMENT_STEP = 1000L;
+    public static final Long ID_SEGMENT_PREFETCH_THRESHOLD = 900L;
+    public static final String ID_WORKER_KEY = "icr:worker:";
+    public static final Long ID_WORKER_TTL = 30L;
 }
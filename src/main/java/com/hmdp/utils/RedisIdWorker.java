@@ -1,12 +1,29 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -18,27 +35,404 @@ public class RedisIdWorker {
      * 序列号的位数
      */
     private static final int COUNT_BITS = 32;
+    /**
+     * 一天的秒数
+     */
+    private static final long SECONDS_PER_DAY = 86400L;
+    /**
+     * 日期格式，只在跨天时使用
+     */
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 雪花算法：起始的毫秒时间戳
+     */
+    private static final long SNOWFLAKE_BEGIN_MILLIS = BEGIN_TIMESTAMP * 1000;
+    /**
+     * 雪花算法：机器id的位数，最多1024台
+     */
+    private static final int WORKER_ID_BITS = 10;
+    /**
+     * 雪花算法：毫秒内序列号的位数，每毫秒4096个
+     */
+    private static final int SEQUENCE_BITS = 12;
+    /**
+     * 雪花算法：毫秒时间戳的位数，约34年
+     */
+    private static final int SNOWFLAKE_TIMESTAMP_BITS = 40;
+    /**
+     * 雪花算法：最高位（第62位）固定为1，与 nextId 的 秒数<<32|序列号 不重叠，并且排在所有 nextId 生成的id之后。
+     * nextId 的秒数要到2056年才会用到第62位
+     */
+    private static final long SNOWFLAKE_FLAG = 1L << (SNOWFLAKE_TIMESTAMP_BITS + WORKER_ID_BITS + SEQUENCE_BITS);
+    private static final long MAX_SNOWFLAKE_TIMESTAMP = (1L << SNOWFLAKE_TIMESTAMP_BITS) - 1;
+    private static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    /**
+     * 允许等待的最大时钟回拨毫秒数，超过则直接报错
+     */
+    private static final long MAX_BACKWARD_MILLIS = 5L;
+
+    // 号段预加载线程池
+    private static final ExecutorService SEGMENT_LOAD_EXECUTOR = Executors.newSingleThreadExecutor();
+    // 机器id续期线程池
+    private static final ScheduledExecutorService WORKER_HEARTBEAT_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    private static final DefaultRedisScript<Long> WORKER_RENEW_SCRIPT;
+
+    static {
+        WORKER_RENEW_SCRIPT = new DefaultRedisScript<>();
+        WORKER_RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        WORKER_RENEW_SCRIPT.setResultType(Long.class);
+    }
 
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 每个业务前缀对应的双号段缓冲
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    /**
+     * 单调时钟，保存已经发出过的最大秒数，系统时间回拨时不会倒退
+     */
+    private final AtomicLong lastSecond = new AtomicLong();
+
+    /**
+     * 当天的日期信息，只在跨天时重新计算
+     */
+    private volatile DayState dayState = DayState.of(Instant.now().getEpochSecond());
+
+    /**
+     * 本JVM租用的机器id的持有者标识
+     */
+    private final String workerOwner = UUID.randomUUID().toString(true);
+
+    /**
+     * 本JVM从redis租用的机器id，-1代表还未租用
+     */
+    private volatile long workerId = -1;
+
+    /**
+     * 雪花算法：上一次生成id的毫秒数
+     */
+    private long lastMillis = -1L;
+
+    /**
+     * 雪花算法：毫秒内序列号
+     */
+    private long sequence = 0L;
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    /**
+     * 雪花算法生成id：标志位(1位) + 时间戳(40位) + 机器id(10位) + 毫秒内序列号(12位)，只在首次使用时访问一次redis租用机器id
+     *
+     * @return
+     */
+    public synchronized long nextSnowflakeId() {
+        long worker = workerId;
+        if (worker < 0) {
+            worker = leaseWorkerId();
+        }
+        long now = System.currentTimeMillis();
+        // 1、时钟回拨检测
+        if (now < lastMillis) {
+            long offset = lastMillis - now;
+            if (offset > MAX_BACKWARD_MILLIS) {
+                throw new IllegalStateException("时钟回拨" + offset + "毫秒，拒绝生成id");
+            }
+            // 回拨幅度很小，等待时钟追上
+            now = waitUntil(lastMillis);
+        }
+        // 2、生成毫秒内序列号
+        if (now == lastMillis) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                // 当前毫秒的序列号用完了，自旋到下一毫秒
+                now = waitUntil(lastMillis + 1);
+            }
+        } else {
+            sequence = 0L;
+        }
+        lastMillis = now;
+        long timestamp = now - SNOWFLAKE_BEGIN_MILLIS;
+        if (timestamp > MAX_SNOWFLAKE_TIMESTAMP) {
+            throw new IllegalStateException("雪花算法时间戳超出范围");
+        }
+        // 3、拼接并返回
+        return SNOWFLAKE_FLAG
+                | timestamp << (WORKER_ID_BITS + SEQUENCE_BITS)
+                | worker << SEQUENCE_BITS
+                | sequence;
+    }
+
+    private long waitUntil(long targetMillis) {
+        long now = System.currentTimeMillis();
+        while (now < targetMillis) {
+            now = System.currentTimeMillis();
+        }
+        return now;
+    }
+
+    /**
+     * 从redis租用一个空闲的机器id，并开启心跳续期
+     *
+     * @return
+     */
+    private synchronized long leaseWorkerId() {
+        if (workerId >= 0) {
+            return workerId;
+        }
+        // 从随机位置开始找，减少多个节点同时启动时的冲突
+        long start = RandomUtil.randomLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                    RedisConstants.ID_WORKER_KEY + id, workerOwner, RedisConstants.ID_WORKER_TTL, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                boolean first = workerId == -1;
+                workerId = id;
+                if (first) {
+                    long period = RedisConstants.ID_WORKER_TTL / 3;
+                    WORKER_HEARTBEAT_EXECUTOR.scheduleAtFixedRate(this::renewWorkerId, period, period, TimeUnit.SECONDS);
+                }
+                log.info("租用雪花算法机器id成功：{}", id);
+                return id;
+            }
+        }
+        throw new IllegalStateException("没有空闲的雪花算法机器id");
+    }
+
+    /**
+     * 心跳续期，如果租约已经丢失，则重新租用
+     */
+    private void renewWorkerId() {
+        long id = workerId;
+        if (id < 0) {
+            return;
+        }
+        try {
+            Long result = stringRedisTemplate.execute(
+                    WORKER_RENEW_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + id),
+                    workerOwner, RedisConstants.ID_WORKER_TTL.toString()
+            );
+            if (result == null || result == 0) {
+                // 机器id已被其他节点占用，重新租用，期间停止发号
+                log.warn("雪花算法机器id租约丢失：{}，重新租用", id);
+                synchronized (this) {
+                    workerId = -2;
+                    leaseWorkerId();
+                }
+            }
+        } catch (Exception e) {
+            log.error("雪花算法机器id续期失败：{}", id, e);
+        }
+    }
+
+    /**
+     * 应用关闭时归还机器id
+     */
+    @PreDestroy
+    public void releaseWorkerId() {
+        long id = workerId;
+        if (id < 0) {
+            return;
+        }
+        String key = RedisConstants.ID_WORKER_KEY + id;
+        if (workerOwner.equals(stringRedisTemplate.opsForValue().get(key))) {
+            stringRedisTemplate.delete(key);
+        }
+    }
+
     public long nextId(String keyPrefix) {
-        // 1、生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        // 1、生成时间戳（本地时区的秒数，与之前 LocalDateTime.toEpochSecond(UTC) 的结果保持一致）
+        long epochSecond = currentSecond();
+        DayState day = dayState;
+        long nowSecond = epochSecond + day.offsetSeconds;
+        if (nowSecond >= day.endSecond) {
+            // 跨天，重新计算日期
+            day = rollover(epochSecond);
+            nowSecond = epochSecond + day.offsetSeconds;
+        }
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         // 2、生成序列号
-        // 2.1、获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2、自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        // 2.1、从本地号段中取号，号段用完时才去redis批量申请 incrby key step
+        long count = getBuffer(keyPrefix, day).nextSeq();
 
         // 3、拼接并返回
         return timestamp << COUNT_BITS | count;
     }
 
+    /**
+     * 当前的秒数，只增不减
+     *
+     * @return
+     */
+    private long currentSecond() {
+        long now = System.currentTimeMillis() / 1000;
+        long last = lastSecond.get();
+        if (now <= last) {
+            return last;
+        }
+        return lastSecond.accumulateAndGet(now, Math::max);
+    }
+
+    /**
+     * 跨天时重新计算日期，一天只会执行一次
+     *
+     * @param epochSecond
+     * @return
+     */
+    private synchronized DayState rollover(long epochSecond) {
+        DayState day = dayState;
+        if (epochSecond + day.offsetSeconds < day.endSecond) {
+            // 其他线程已经切换过了
+            return day;
+        }
+        day = DayState.of(epochSecond);
+        dayState = day;
+        return day;
+    }
+
+    /**
+     * 获取当天的号段缓冲，跨天后换成新的key重新申请号段
+     *
+     * @param keyPrefix
+     * @param day
+     * @return
+     */
+    private SegmentBuffer getBuffer(String keyPrefix, DayState day) {
+        SegmentBuffer buffer = buffers.get(keyPrefix);
+        if (buffer != null && buffer.day.date.equals(day.date)) {
+            return buffer;
+        }
+        return buffers.compute(keyPrefix, (k, old) ->
+                old != null && old.day.date.equals(day.date) ? old : new SegmentBuffer("icr:" + keyPrefix + ":" + day.date, day));
+    }
+
+    /**
+     * 从redis申请一个号段 [end - step + 1, end]
+     *
+     * @param key
+     * @return
+     */
+    private Segment loadSegment(String key) {
+        long step = RedisConstants.ID_SEGMENT_STEP;
+        Long end = stringRedisTemplate.opsForValue().increment(key, step);
+        if (end == null) {
+            throw new IllegalStateException("申请id号段失败：" + key);
+        }
+        return new Segment(end - step + 1, end);
+    }
+
+    /**
+     * 当天的日期信息：日期字符串、当天结束的秒数、时区偏移
+     */
+    private static class DayState {
+        private final String date;
+        private final long endSecond;
+        private final long offsetSeconds;
+
+        private DayState(String date, long endSecond, long offsetSeconds) {
+            this.date = date;
+            this.endSecond = endSecond;
+            this.offsetSeconds = offsetSeconds;
+        }
+
+        static DayState of(long epochSecond) {
+            ZoneId zone = ZoneId.systemDefault();
+            long offset = zone.getRules().getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds();
+            long localSecond = epochSecond + offset;
+            long startSecond = Math.floorDiv(localSecond, SECONDS_PER_DAY) * SECONDS_PER_DAY;
+            String date = LocalDate.ofEpochDay(startSecond / SECONDS_PER_DAY).format(DATE_FORMATTER);
+            return new DayState(date, startSecond + SECONDS_PER_DAY, offset);
+        }
+    }
+
+    /**
+     * 号段，[value, max] 之间的序列号都归本节点使用
+     */
+    private static class Segment {
+        private final AtomicLong value;
+        private final long max;
+
+        Segment(long start, long max) {
+            this.value = new AtomicLong(start);
+            this.max = max;
+        }
+
+        long remaining() {
+            return max - value.get() + 1;
+        }
+    }
+
+    /**
+     * 双号段缓冲：当前号段消耗到阈值时异步预取下一个号段，用完后直接切换
+     */
+    private class SegmentBuffer {
+        private final String key;
+        private final DayState day;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+
+        SegmentBuffer(String key, DayState day) {
+            this.key = key;
+            this.day = day;
+        }
+
+        long nextSeq() {
+            while (true) {
+                Segment segment = current;
+                if (segment != null) {
+                    long seq = segment.value.getAndIncrement();
+                    if (seq <= segment.max) {
+                        // 剩余号数低于阈值，异步预取下一个号段
+                        if (next == null && segment.max - seq < RedisConstants.ID_SEGMENT_PREFETCH_THRESHOLD) {
+                            prefetch();
+                        }
+                        return seq;
+                    }
+                }
+                switchSegment(segment);
+            }
+        }
+
+        private void prefetch() {
+            if (!loading.compareAndSet(false, true)) {
+                return;
+            }
+            SEGMENT_LOAD_EXECUTOR.submit(() -> {
+                try {
+                    next = loadSegment(key);
+                } catch (Exception e) {
+                    log.error("预取id号段失败：{}", key, e);
+                } finally {
+                    loading.set(false);
+                }
+            });
+        }
+
+        private synchronized void switchSegment(Segment exhausted) {
+            if (current != exhausted) {
+                // 其他线程已经切换过了
+                return;
+            }
+            Segment segment = next;
+            if (segment != null && segment.remaining() > 0) {
+                // 预取的号段已就绪，直接切换
+                next = null;
+                current = segment;
+                return;
+            }
+            // 预取未完成，同步申请
+            current = loadSegment(key);
+        }
+    }
+
 }
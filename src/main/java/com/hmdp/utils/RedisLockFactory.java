@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * 创建分布式锁，统一组装为 统计 -> 本地锁 -> redis锁，等待redis锁的线程由锁释放的消息唤醒，业务代码不直接new SimpleRedisLock
+ */
+@Component
+public class RedisLockFactory {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final LockSubscriber lockSubscriber;
+
+    private final LockMetrics lockMetrics;
+
+    public RedisLockFactory(StringRedisTemplate stringRedisTemplate, LockSubscriber lockSubscriber, LockMetrics lockMetrics) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.lockSubscriber = lockSubscriber;
+        this.lockMetrics = lockMetrics;
+    }
+
+    /**
+     * 获取锁对象，同一个JVM中竞争同一把锁的线程先在本地排队，只有拿到本地锁的线程才访问redis
+     *
+     * @param name 锁的名称，redis中的key为 lock:{name}
+     * @return
+     */
+    public ILock getLock(String name) {
+        ILock redisLock = new SimpleRedisLock(name, stringRedisTemplate, lockSubscriber);
+        return new MonitoredLock(name, new TwoLevelLock(name, redisLock), lockMetrics);
+    }
+
+}
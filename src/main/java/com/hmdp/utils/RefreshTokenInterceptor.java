@@ -1,22 +1,33 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 public class RefreshTokenInterceptor implements HandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
+    private LoginUserCache loginUserCache;
+
+    private LoginTokenRefresher loginTokenRefresher;
+
+    private SignedTokenCodec signedTokenCodec;
+
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, LoginUserCache loginUserCache,
+                                   LoginTokenRefresher loginTokenRefresher, SignedTokenCodec signedTokenCodec) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.loginUserCache = loginUserCache;
+        this.loginTokenRefresher = loginTokenRefresher;
+        this.signedTokenCodec = signedTokenCodec;
     }
 
     @Override
@@ -27,25 +38,52 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
             return true;
         }
 
-        // 2. 基于token获取redis中的用户
-        String key = RedisConstants.LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
-
-        // 3. 判断用户是否存在
-        if (userMap.isEmpty()) {
+        // 2. 签名token，校验签名即可，不需要访问redis
+        if (signedTokenCodec.isSignedToken(token)) {
+            UserDTO userDTO = signedTokenCodec.verify(token);
+            if (userDTO != null) {
+                UserHolder.saveUser(userDTO);
+            }
             return true;
         }
 
-        // 5. 将查询到的Hash数据转为UserDTO对象
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+        // 3. 先查本地缓存，命中则不需要访问redis
+        LoginUserCache.LoginSession session = loginUserCache.get(token);
+        if (session == null) {
+            // 4. 未命中，基于token获取redis中的用户和剩余有效期（pipeline，一次往返）
+            String key = RedisConstants.LOGIN_USER_KEY + token;
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                connection.hashCommands().hGetAll(rawKey);
+                connection.keyCommands().pTtl(rawKey);
+                return null;
+            });
+            @SuppressWarnings("unchecked")
+            Map<Object, Object> userMap = (Map<Object, Object>) results.get(0);
+            Long ttl = (Long) results.get(1);
 
-        // 6. 存在，保存用户信息到ThreadLocal
-        UserHolder.saveUser(userDTO);
+            // 5. 判断用户是否存在
+            if (userMap == null || userMap.isEmpty()) {
+                return true;
+            }
 
-        // 7. 刷新token有效期
-        stringRedisTemplate.expire(key, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+            // 6. 将查询到的Hash数据转为UserDTO对象，保存到本地缓存
+            UserDTO userDTO = UserConverter.fromMap(userMap);
+            long expireAt = System.currentTimeMillis() + (ttl == null || ttl < 0 ? 0 : ttl);
+            session = loginUserCache.put(token, userDTO, expireAt);
+        }
+
+        // 7. 存在，保存用户信息到ThreadLocal
+        UserHolder.saveUser(session.getUser());
+
+        // 8. 剩余有效期低于阈值时才刷新token有效期，由后台批量发送
+        long now = System.currentTimeMillis();
+        if (session.needsRefresh(now)) {
+            session.refreshed(now);
+            loginTokenRefresher.refresh(token);
+        }
 
-        // 8. 放行
+        // 9. 放行
         return true;
     }
 
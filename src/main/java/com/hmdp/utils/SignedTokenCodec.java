@@ -0,0 +1,162 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 无状态的签名token：token中直接携带用户信息和过期时间，用HMAC-SHA256签名，校验时不需要访问redis。
+ * 格式：v1.base64url(payload).base64url(signature)
+ */
+@Component
+public class SignedTokenCodec {
+
+    private static final String VERSION = "v1";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    /**
+     * 是否启用签名token，不启用时登录仍然使用redis保存会话
+     */
+    private final boolean enabled;
+    private final SecretKeySpec secretKey;
+
+    // Mac不是线程安全的，每个线程一个
+    private final ThreadLocal<Mac> macs;
+
+    private final TokenDenylist tokenDenylist;
+
+    public SignedTokenCodec(@Value("${hmdp.login.token-mode:redis}") String tokenMode,
+                            @Value("${hmdp.login.token-secret:}") String tokenSecret,
+                            TokenDenylist tokenDenylist) {
+        this.enabled = "signed".equalsIgnoreCase(tokenMode);
+        if (enabled && tokenSecret.length() < 32) {
+            throw new IllegalStateException("签名token的密钥 hmdp.login.token-secret 至少需要32个字符");
+        }
+        this.secretKey = enabled ? new SecretKeySpec(tokenSecret.getBytes(StandardCharsets.UTF_8), ALGORITHM) : null;
+        this.macs = ThreadLocal.withInitial(this::newMac);
+        this.tokenDenylist = tokenDenylist;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 是否是签名token，用于和redis会话的token区分
+     *
+     * @param token
+     * @return
+     */
+    public boolean isSignedToken(String token) {
+        return token.startsWith(VERSION + ".");
+    }
+
+    /**
+     * 签发token
+     *
+     * @param userDTO
+     * @return
+     */
+    public String issue(UserDTO userDTO) {
+        JSONObject payload = new JSONObject();
+        payload.set("id", userDTO.getId());
+        payload.set("nickName", userDTO.getNickName());
+        payload.set("icon", userDTO.getIcon());
+        payload.set("jti", UUID.randomUUID().toString(true));
+        payload.set("exp", System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_SIGNED_TOKEN_TTL));
+        String body = VERSION + "." + ENCODER.encodeToString(payload.toString().getBytes(StandardCharsets.UTF_8));
+        return body + "." + ENCODER.encodeToString(sign(body));
+    }
+
+    /**
+     * 校验token，校验签名、过期时间和吊销名单，全程不访问redis
+     *
+     * @param token
+     * @return 校验通过返回用户信息，否则返回null
+     */
+    public UserDTO verify(String token) {
+        JSONObject payload = parse(token);
+        if (payload == null) {
+            return null;
+        }
+        // 吊销名单只保存在本地内存中
+        if (tokenDenylist.isRevoked(payload.getStr("jti"))) {
+            return null;
+        }
+        UserDTO userDTO = new UserDTO();
+        userDTO.setId(payload.getLong("id"));
+        userDTO.setNickName(payload.getStr("nickName"));
+        userDTO.setIcon(payload.getStr("icon"));
+        return userDTO;
+    }
+
+    /**
+     * 吊销token，用于登出
+     *
+     * @param token
+     */
+    public void revoke(String token) {
+        JSONObject payload = parse(token);
+        if (payload != null) {
+            tokenDenylist.revoke(payload.getStr("jti"), payload.getLong("exp"));
+        }
+    }
+
+    /**
+     * 解析并校验签名和过期时间
+     *
+     * @param token
+     * @return 无效时返回null
+     */
+    private JSONObject parse(String token) {
+        int i = token.lastIndexOf('.');
+        if (!enabled || !isSignedToken(token) || i <= VERSION.length()) {
+            return null;
+        }
+        String body = token.substring(0, i);
+        try {
+            byte[] signature = DECODER.decode(token.substring(i + 1));
+            if (!MessageDigest.isEqual(signature, sign(body))) {
+                return null;
+            }
+            String json = new String(DECODER.decode(body.substring(VERSION.length() + 1)), StandardCharsets.UTF_8);
+            JSONObject payload = JSONUtil.parseObj(json);
+            Long exp = payload.getLong("exp");
+            if (exp == null || exp < System.currentTimeMillis()) {
+                return null;
+            }
+            return payload;
+        } catch (IllegalArgumentException e) {
+            // base64格式错误
+            return null;
+        }
+    }
+
+    private byte[] sign(String body) {
+        return macs.get().doFinal(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(secretKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("初始化token签名失败", e);
+        }
+    }
+
+}
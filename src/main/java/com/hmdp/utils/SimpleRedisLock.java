@@ -1,64 +1,246 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
-import org.springframework.data.redis.core.script.RedisScript;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+@Slf4j
 public class SimpleRedisLock implements ILock {
 
     private String name;
     private StringRedisTemplate stringRedisTemplate;
+    private LockSubscriber lockSubscriber;
+    /**
+     * 最近一次获取锁时拿到的栅栏令牌
+     */
+    private volatile long fencingToken;
     private static final String KEY_PREFIX = "lock:";
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT;
     private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    /**
+     * 看门狗线程池，所有锁共用
+     */
+    private static final ScheduledExecutorService WATCH_DOG_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 需要看门狗续期的锁，key是锁的key加线程标识
+     */
+    private static final Map<String, RenewalEntry> RENEWAL_ENTRIES = new ConcurrentHashMap<>();
 
     static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
         UNLOCK_SCRIPT = new DefaultRedisScript<>();
         UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
         UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
     }
 
     public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+        this(name, stringRedisTemplate, null);
+    }
+
+    /**
+     * @param name
+     * @param stringRedisTemplate
+     * @param lockSubscriber      不为空时，等待锁的线程订阅锁释放的消息；为空时退化为按锁的剩余有效期轮询
+     */
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, LockSubscriber lockSubscriber) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.lockSubscriber = lockSubscriber;
     }
 
     @Override
     public boolean tryLock(long timeoutSec) {
-        // 获取线程标识
-        String threadId = ID_PREFIX + Thread.currentThread().getId();
-        // 获取锁
-        Boolean success = stringRedisTemplate.opsForValue()
-                .setIfAbsent(KEY_PREFIX + name, threadId + "", timeoutSec, TimeUnit.SECONDS);
-        return Boolean.TRUE.equals(success);
+        return tryAcquire(TimeUnit.SECONDS.toMillis(timeoutSec), false) > 0;
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        boolean watchDog = leaseTime == -1;
+        long leaseMillis = watchDog ? RedisConstants.LOCK_WATCH_DOG_TTL : unit.toMillis(leaseTime);
+        long remaining = unit.toMillis(waitTime);
+        long deadline = System.currentTimeMillis() + remaining;
+        // 1、先尝试一次
+        long result = tryAcquire(leaseMillis, watchDog);
+        if (result > 0) {
+            return true;
+        }
+        if (remaining <= 0) {
+            return false;
+        }
+        // 2、获取失败，订阅锁释放的消息，然后循环等待
+        String channel = getChannel();
+        if (lockSubscriber != null) {
+            lockSubscriber.subscribe(channel);
+        }
+        try {
+            while (true) {
+                result = tryAcquire(leaseMillis, watchDog);
+                if (result > 0) {
+                    return true;
+                }
+                remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // 最多等到锁过期，防止释放消息丢失后一直等待
+                long waitMillis = Math.min(-result, remaining);
+                if (lockSubscriber != null) {
+                    lockSubscriber.await(channel, waitMillis, TimeUnit.MILLISECONDS);
+                } else {
+                    Thread.sleep(Math.min(waitMillis, RedisConstants.LOCK_POLL_INTERVAL));
+                }
+            }
+        } finally {
+            if (lockSubscriber != null) {
+                lockSubscriber.unsubscribe(channel);
+            }
+        }
+    }
+
+    /**
+     * 执行获取锁的lua脚本
+     *
+     * @param leaseMillis
+     * @param watchDog
+     * @return 正数代表获取锁成功，值为栅栏令牌；负数代表获取失败，值为锁剩余有效期的相反数
+     */
+    private long tryAcquire(long leaseMillis, boolean watchDog) {
+        String threadId = getThreadId();
+        Long result = stringRedisTemplate.execute(
+                LOCK_SCRIPT,
+                Arrays.asList(getKey(), getFenceKey()),
+                String.valueOf(leaseMillis), threadId, String.valueOf(TimeUnit.HOURS.toMillis(RedisConstants.LOCK_FENCE_TTL))
+        );
+        if (result == null) {
+            throw new IllegalStateException("获取锁失败：" + getKey());
+        }
+        if (result > 0) {
+            fencingToken = result;
+            if (watchDog) {
+                scheduleRenewal(threadId);
+            } else {
+                // 看门狗续期中的锁被重入，同样计数，保证释放次数对得上
+                RENEWAL_ENTRIES.computeIfPresent(getKey() + ":" + threadId, (k, entry) -> {
+                    entry.count++;
+                    return entry;
+                });
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getFencingToken() {
+        return fencingToken;
     }
 
     @Override
     public void unlock() {
+        String threadId = getThreadId();
         // 调用lua脚本
-        stringRedisTemplate.execute(
+        Long result = stringRedisTemplate.execute(
                 UNLOCK_SCRIPT,
-                Collections.singletonList(KEY_PREFIX + name),
-                ID_PREFIX + Thread.currentThread().getId()
+                Arrays.asList(getKey(), getChannel()),
+                threadId, String.valueOf(RedisConstants.LOCK_WATCH_DOG_TTL)
         );
+        if (result != null) {
+            cancelRenewal(threadId);
+        }
     }
 
-    /*@Override
-    public void unlock() {
-        // 获取线程标识
-        String threadId = ID_PREFIX + Thread.currentThread().getId();
-        // 获取锁中的标识
-        String id = stringRedisTemplate.opsForValue().get(KEY_PREFIX + name);
-        // 判断标识是否一致
-        if (threadId.equals(id)) {
-            // 释放锁
-            stringRedisTemplate.delete(KEY_PREFIX + name);
+    /**
+     * 开启看门狗，每隔1/3有效期续期一次，重入时只增加计数
+     *
+     * @param threadId
+     */
+    private void scheduleRenewal(String threadId) {
+        String entryName = getKey() + ":" + threadId;
+        RENEWAL_ENTRIES.compute(entryName, (k, entry) -> {
+            if (entry != null) {
+                entry.count++;
+                return entry;
+            }
+            RenewalEntry newEntry = new RenewalEntry();
+            long period = RedisConstants.LOCK_WATCH_DOG_TTL / 3;
+            newEntry.future = WATCH_DOG_EXECUTOR.scheduleAtFixedRate(
+                    () -> renew(entryName, threadId), period, period, TimeUnit.MILLISECONDS);
+            return newEntry;
+        });
+    }
+
+    private void renew(String entryName, String threadId) {
+        try {
+            Long result = stringRedisTemplate.execute(
+                    RENEW_SCRIPT,
+                    Collections.singletonList(getKey()),
+                    threadId, String.valueOf(RedisConstants.LOCK_WATCH_DOG_TTL)
+            );
+            if (result == null || result == 0) {
+                // 锁已经不是自己的了，停止续期
+                RenewalEntry entry = RENEWAL_ENTRIES.remove(entryName);
+                if (entry != null) {
+                    entry.future.cancel(false);
+                }
+            }
+        } catch (Exception e) {
+            log.error("锁续期失败：{}", getKey(), e);
         }
-    }*/
+    }
+
+    /**
+     * 释放一次锁，重入计数归零时停止看门狗
+     *
+     * @param threadId
+     */
+    private void cancelRenewal(String threadId) {
+        RENEWAL_ENTRIES.computeIfPresent(getKey() + ":" + threadId, (k, entry) -> {
+            if (--entry.count > 0) {
+                return entry;
+            }
+            entry.future.cancel(false);
+            return null;
+        });
+    }
+
+    private String getKey() {
+        return KEY_PREFIX + name;
+    }
+
+    private String getFenceKey() {
+        return RedisConstants.LOCK_FENCE_KEY + name;
+    }
+
+    private String getChannel() {
+        return RedisConstants.LOCK_CHANNEL_PREFIX + name;
+    }
+
+    private String getThreadId() {
+        return ID_PREFIX + Thread.currentThread().getId();
+    }
+
+    private static class RenewalEntry {
+        private int count = 1;
+        private ScheduledFuture<?> future;
+    }
 
 }
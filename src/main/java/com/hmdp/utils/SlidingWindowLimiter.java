@@ -0,0 +1,126 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于redis zset + lua的滑动窗口限流，一次请求可以同时检查多个窗口（例如按手机号和按IP），全部满足才放行。
+ * 按规则名称统计被拒绝的次数，定期输出到日志
+ */
+@Slf4j
+@Component
+public class SlidingWindowLimiter {
+
+    private static final DefaultRedisScript<Long> SLIDING_WINDOW_SCRIPT;
+
+    static {
+        SLIDING_WINDOW_SCRIPT = new DefaultRedisScript<>();
+        SLIDING_WINDOW_SCRIPT.setLocation(new ClassPathResource("sliding_window.lua"));
+        SLIDING_WINDOW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 每条规则被拒绝的次数
+     */
+    private final Map<String, LongAdder> rejections = new ConcurrentHashMap<>();
+
+    // 统计报告线程池
+    private final ScheduledExecutorService reportExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public SlidingWindowLimiter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        reportExecutor.scheduleAtFixedRate(this::report,
+                RedisConstants.LIMIT_REPORT_INTERVAL, RedisConstants.LIMIT_REPORT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reportExecutor.shutdown();
+    }
+
+    /**
+     * 尝试通过所有规则
+     *
+     * @param rules
+     * @return 被拒绝的规则，全部通过时返回null
+     */
+    public Rule tryAcquire(Rule... rules) {
+        List<String> keys = new ArrayList<>(rules.length);
+        List<String> args = new ArrayList<>(rules.length * 2 + 2);
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.add(UUID.randomUUID().toString(true));
+        for (Rule rule : rules) {
+            keys.add(rule.key);
+            args.add(String.valueOf(rule.windowMillis));
+            args.add(String.valueOf(rule.limit));
+        }
+        Long result = stringRedisTemplate.execute(SLIDING_WINDOW_SCRIPT, keys, args.toArray());
+        if (result == null || result == 0) {
+            return null;
+        }
+        Rule rejected = rules[result.intValue() - 1];
+        recordRejection(rejected.name);
+        return rejected;
+    }
+
+    /**
+     * 记录一次被拒绝，本地预过滤拒绝的请求也计入
+     *
+     * @param ruleName
+     */
+    public void recordRejection(String ruleName) {
+        rejections.computeIfAbsent(ruleName, k -> new LongAdder()).increment();
+    }
+
+    private void report() {
+        rejections.forEach((name, count) -> {
+            long n = count.sumThenReset();
+            if (n > 0) {
+                log.info("限流统计[{}] 拒绝{}次", name, n);
+            }
+        });
+    }
+
+    /**
+     * 限流规则：在 windowMillis 内，同一个 key 最多 limit 次
+     */
+    public static class Rule {
+        private final String name;
+        private final String key;
+        private final long windowMillis;
+        private final int limit;
+
+        public Rule(String name, String key, long window, TimeUnit unit, int limit) {
+            this.name = name;
+            this.key = key;
+            this.windowMillis = unit.toMillis(window);
+            this.limit = limit;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+}
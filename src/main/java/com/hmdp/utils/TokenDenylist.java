@@ -0,0 +1,106 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 签名token的吊销名单。
+ * redis中用zset保存（member是token的jti，score是token的过期时间），每个节点在内存中保存一份副本，
+ * 通过pub/sub同步，校验token时只查内存
+ */
+@Slf4j
+@Component
+public class TokenDenylist implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 本地副本：jti -> 过期时间
+     */
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+
+    // 清理过期记录的线程池
+    private final ScheduledExecutorService cleanExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public TokenDenylist(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        container.addMessageListener(this, new ChannelTopic(RedisConstants.LOGIN_REVOKED_CHANNEL));
+    }
+
+    @PostConstruct
+    private void init() {
+        cleanExecutor.scheduleWithFixedDelay(this::reload, 0, RedisConstants.LOGIN_REVOKED_RELOAD_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        cleanExecutor.shutdown();
+    }
+
+    public boolean isRevoked(String jti) {
+        if (jti == null) {
+            return false;
+        }
+        Long exp = revoked.get(jti);
+        return exp != null && exp >= System.currentTimeMillis();
+    }
+
+    /**
+     * 吊销token，保存到redis并通知所有节点
+     *
+     * @param jti
+     * @param exp token的过期时间，过期后记录自动清理
+     */
+    public void revoke(String jti, long exp) {
+        revoked.put(jti, exp);
+        stringRedisTemplate.opsForZSet().add(RedisConstants.LOGIN_REVOKED_KEY, jti, exp);
+        stringRedisTemplate.convertAndSend(RedisConstants.LOGIN_REVOKED_CHANNEL, jti + ":" + exp);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = body.lastIndexOf(':');
+        if (i > 0) {
+            revoked.put(body.substring(0, i), Long.valueOf(body.substring(i + 1)));
+        }
+    }
+
+    /**
+     * 清理已过期的记录，并从redis重新加载一次，补上启动前和pub/sub断线期间错过的吊销记录
+     */
+    private void reload() {
+        try {
+            long now = System.currentTimeMillis();
+            revoked.values().removeIf(exp -> exp < now);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(RedisConstants.LOGIN_REVOKED_KEY, 0, now);
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .rangeByScoreWithScores(RedisConstants.LOGIN_REVOKED_KEY, now, Double.MAX_VALUE);
+            if (tuples == null) {
+                return;
+            }
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                revoked.put(tuple.getValue(), tuple.getScore().longValue());
+            }
+        } catch (Exception e) {
+            log.error("加载token吊销名单失败", e);
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.hmdp.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 两级锁：先获取JVM内按锁名称区分的本地锁，再获取分布式锁。
+ * 同一个JVM里同一把锁只有一个线程会去访问redis，其他线程在本地就被挡住，不再产生注定失败的redis请求
+ */
+public class TwoLevelLock implements ILock {
+
+    /**
+     * 本地锁，key是锁的名称，没有线程持有或等待时自动删除
+     */
+    private static final Map<String, LocalEntry> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final ILock delegate;
+
+    /**
+     * @param name     锁的名称，与分布式锁的名称保持一致
+     * @param delegate 分布式锁
+     */
+    public TwoLevelLock(String name, ILock delegate) {
+        this.name = name;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        // 1、获取本地锁，失败说明本JVM中已经有线程持有了这把锁，不用再访问redis
+        LocalEntry entry = acquireEntry();
+        if (!entry.lock.tryLock()) {
+            releaseEntry();
+            return false;
+        }
+        // 2、获取分布式锁
+        boolean success = false;
+        try {
+            success = delegate.tryLock(timeoutSec);
+        } finally {
+            if (!success) {
+                entry.lock.unlock();
+                releaseEntry();
+            }
+        }
+        return success;
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        // 1、在等待时间内获取本地锁
+        LocalEntry entry = acquireEntry();
+        boolean localLocked = false;
+        try {
+            localLocked = entry.lock.tryLock(waitTime, unit);
+        } finally {
+            if (!localLocked) {
+                releaseEntry();
+            }
+        }
+        if (!localLocked) {
+            return false;
+        }
+        // 2、用剩余的等待时间获取分布式锁，按纳秒传递，不足一个unit的剩余时间不会被舍成0；-1（看门狗）原样传递
+        boolean success = false;
+        try {
+            long remaining = Math.max(deadline - System.nanoTime(), 0);
+            long leaseNanos = leaseTime < 0 ? leaseTime : unit.toNanos(leaseTime);
+            success = delegate.tryLock(remaining, leaseNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            if (!success) {
+                entry.lock.unlock();
+                releaseEntry();
+            }
+        }
+        return success;
+    }
+
+    @Override
+    public long getFencingToken() {
+        return delegate.getFencingToken();
+    }
+
+    @Override
+    public void unlock() {
+        LocalEntry entry = LOCAL_LOCKS.get(name);
+        if (entry == null || !entry.lock.isHeldByCurrentThread()) {
+            // 本线程没有持有锁
+            return;
+        }
+        try {
+            // 先释放分布式锁，再释放本地锁
+            delegate.unlock();
+        } finally {
+            entry.lock.unlock();
+            releaseEntry();
+        }
+    }
+
+    /**
+     * 登记使用本地锁，引用计数+1
+     *
+     * @return
+     */
+    private LocalEntry acquireEntry() {
+        return LOCAL_LOCKS.compute(name, (k, entry) -> {
+            if (entry == null) {
+                entry = new LocalEntry();
+            }
+            entry.references++;
+            return entry;
+        });
+    }
+
+    /**
+     * 引用计数-1，没有线程持有或等待时删除本地锁
+     */
+    private void releaseEntry() {
+        LOCAL_LOCKS.computeIfPresent(name, (k, entry) -> --entry.references == 0 ? null : entry);
+    }
+
+    private static class LocalEntry {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int references;
+    }
+
+}
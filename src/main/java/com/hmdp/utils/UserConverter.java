@@ -0,0 +1,81 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.User;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 手写的用户对象转换，替代请求链路上基于反射的BeanUtil，字段变化时需要同步修改
+ */
+public class UserConverter {
+
+    private static final String ID = "id";
+    private static final String NICK_NAME = "nickName";
+    private static final String ICON = "icon";
+
+    private UserConverter() {
+    }
+
+    /**
+     * User转UserDTO
+     *
+     * @param user
+     * @return
+     */
+    public static UserDTO toDTO(User user) {
+        if (user == null) {
+            return null;
+        }
+        UserDTO userDTO = new UserDTO();
+        userDTO.setId(user.getId());
+        userDTO.setNickName(user.getNickName());
+        userDTO.setIcon(user.getIcon());
+        return userDTO;
+    }
+
+    /**
+     * UserDTO转为存入redis hash的Map，值都转为字符串，忽略空值
+     *
+     * @param userDTO
+     * @return
+     */
+    public static Map<String, String> toMap(UserDTO userDTO) {
+        Map<String, String> map = new HashMap<>(4);
+        if (userDTO.getId() != null) {
+            map.put(ID, userDTO.getId().toString());
+        }
+        if (userDTO.getNickName() != null) {
+            map.put(NICK_NAME, userDTO.getNickName());
+        }
+        if (userDTO.getIcon() != null) {
+            map.put(ICON, userDTO.getIcon());
+        }
+        return map;
+    }
+
+    /**
+     * redis hash中读取的Map转为UserDTO
+     *
+     * @param map
+     * @return
+     */
+    public static UserDTO fromMap(Map<Object, Object> map) {
+        UserDTO userDTO = new UserDTO();
+        Object id = map.get(ID);
+        if (id != null) {
+            userDTO.setId(Long.valueOf(id.toString()));
+        }
+        Object nickName = map.get(NICK_NAME);
+        if (nickName != null) {
+            userDTO.setNickName(nickName.toString());
+        }
+        Object icon = map.get(ICON);
+        if (icon != null) {
+            userDTO.setIcon(icon.toString());
+        }
+        return userDTO;
+    }
+
+}
@@ -0,0 +1,16 @@
+-- 计数落库后收尾：推进笔记缓存的栅栏令牌并删除缓存，最后一批同时删除刷新中的增量，在一个脚本里原子执行。
+-- 令牌推进后，落库前读取数据库的加载和重建线程写入缓存时会被拒绝（fenced_set.lua、fenced_mset.lua），
+-- 缓存中的计数不会少算本批增量；删除缓存和删除增量之间也不会有读取到新值又加上增量的窗口
+-- KEYS[1]：刷新中的增量hash
+-- KEYS[2..]：栅栏令牌计数器的key1, 笔记缓存的key1, 栅栏令牌计数器的key2, 笔记缓存的key2, ...
+-- ARGV[1]：栅栏令牌计数器的有效期（毫秒）
+-- ARGV[2]：1代表最后一批，删除刷新中的增量
+for i = 2, #KEYS, 2 do
+    redis.call('incr', KEYS[i])
+    redis.call('pexpire', KEYS[i], ARGV[1])
+    redis.call('del', KEYS[i + 1])
+end
+if (ARGV[2] == '1') then
+    redis.call('del', KEYS[1])
+end
+return 1
@@ -0,0 +1,8 @@
+-- 删除缓存并推进栅栏令牌，在一个脚本里原子执行；删除前已经查询数据库的线程带旧令牌写回时会被拒绝（fenced_set.lua）
+-- KEYS[1]：栅栏令牌计数器的key
+-- KEYS[2]：要删除的缓存key
+-- ARGV[1]：栅栏令牌计数器的有效期（毫秒）
+redis.call('incr', KEYS[1])
+redis.call('pexpire', KEYS[1], ARGV[1])
+redis.call('del', KEYS[2])
+return 1
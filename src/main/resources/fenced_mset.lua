@@ -0,0 +1,12 @@
+-- 批量带栅栏令牌的条件写入，每个key独立判断
+-- KEYS：栅栏令牌计数器的key1, 要写入的key1, 栅栏令牌计数器的key2, 要写入的key2, ...
+-- ARGV：读取数据前拿到的令牌1, 要写入的值1, 令牌2, 值2, ...
+local written = 0
+for i = 1, #KEYS, 2 do
+    -- 读取数据之后令牌被推进过（锁被其他线程获取，或者数据已经更新），说明读到的数据可能已经过期，跳过
+    if (tonumber(redis.call('get', KEYS[i]) or 0) <= tonumber(ARGV[i])) then
+        redis.call('set', KEYS[i + 1], ARGV[i + 1])
+        written = written + 1
+    end
+end
+return written
@@ -0,0 +1,21 @@
+-- 栅栏令牌计数器的key
+local fenceKey = KEYS[1]
+-- 要写入的key
+local key = KEYS[2]
+-- 持锁时拿到的令牌
+local token = tonumber(ARGV[1])
+-- 要写入的值
+local value = ARGV[2]
+-- 过期时间（毫秒），可选
+local ttl = ARGV[3]
+
+-- 已经发放了更新的令牌，说明锁已经过期并被其他线程获取，拒绝写入
+if (tonumber(redis.call('get', fenceKey) or 0) > token) then
+    return 0
+end
+if (ttl) then
+    redis.call('set', key, value, 'px', ttl)
+else
+    redis.call('set', key, value)
+end
+return 1
@@ -0,0 +1,21 @@
+-- 按数据库中的点赞数加上还没有落库的增量校正热门排行榜，读取增量、当前分数和修正在一个脚本里原子执行，
+-- 不会覆盖并发点赞（like_toggle.lua）的zincrby
+-- KEYS[1]：热门排行榜 blog:hot
+-- KEYS[2]：点赞数增量 blog:liked:delta
+-- KEYS[3]：刷新中的点赞数增量 blog:liked:delta:flushing
+-- ARGV：笔记id1, 数据库点赞数1, 笔记id2, 数据库点赞数2, ...
+local corrected = 0
+for i = 1, #ARGV, 2 do
+    local id = ARGV[i]
+    -- 1、正确的点赞数 = 数据库中的点赞数 + 等待刷新的增量 + 正在刷新的增量
+    local target = tonumber(ARGV[i + 1])
+            + tonumber(redis.call('hget', KEYS[2], id) or 0)
+            + tonumber(redis.call('hget', KEYS[3], id) or 0)
+    -- 2、和排行榜中的分数比较，不一致的按差值修正
+    local score = tonumber(redis.call('zscore', KEYS[1], id) or 0)
+    if (score ~= target) then
+        redis.call('zincrby', KEYS[1], target - score, id)
+        corrected = corrected + 1
+    end
+end
+return corrected
@@ -0,0 +1,22 @@
+-- 点赞/取消点赞，点赞集合、点赞数增量、热门排行榜在一个脚本里原子更新
+-- KEYS[1]：点赞集合 blog:liked:{blogId}
+-- KEYS[2]：点赞数增量 blog:liked:delta
+-- KEYS[3]：热门排行榜 blog:hot
+-- ARGV[1]：用户id
+-- ARGV[2]：当前时间（毫秒）
+-- ARGV[3]：笔记id
+local delta = 1
+-- 1、判断是否已经点赞
+if (redis.call('zscore', KEYS[1], ARGV[1])) then
+    -- 2、已经点赞，取消点赞
+    redis.call('zrem', KEYS[1], ARGV[1])
+    delta = -1
+else
+    -- 3、未点赞，点赞
+    redis.call('zadd', KEYS[1], ARGV[2], ARGV[1])
+end
+-- 4、累加点赞数增量，更新排行榜
+redis.call('hincrby', KEYS[2], ARGV[3], delta)
+redis.call('zincrby', KEYS[3], delta, ARGV[3])
+-- 5、返回点赞数变化：1代表点赞，-1代表取消点赞
+return delta
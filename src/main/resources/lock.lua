@@ -0,0 +1,43 @@
+-- 锁的key
+local key = KEYS[1]
+-- 栅栏令牌计数器的key
+local fenceKey = KEYS[2]
+-- 锁持有的超时时间（毫秒）
+local releaseTime = ARGV[1]
+-- 线程标识
+local threadId = ARGV[2]
+-- 栅栏令牌计数器的有效期（毫秒），远大于锁的持有时间
+local fenceTtl = ARGV[3]
+
+-- 判断锁是否存在
+if (redis.call('exists', key) == 0) then
+    -- 不存在，获取锁，并发放一个新的栅栏令牌 incr fenceKey
+    local token
+    if (redis.call('exists', fenceKey) == 0) then
+        -- 计数器不存在（首次使用或已过期），从redis服务器的当前微秒数开始，保证比过期前发放的令牌都大
+        local now = redis.call('time')
+        token = tonumber(now[1]) * 1000000 + tonumber(now[2])
+        redis.call('set', fenceKey, token)
+    else
+        token = redis.call('incr', fenceKey)
+    end
+    -- 长期不用的锁的计数器自动删除
+    redis.call('pexpire', fenceKey, fenceTtl)
+    redis.call('hset', key, threadId, 1, 'fence', token)
+    redis.call('pexpire', key, releaseTime)
+    -- 返回令牌（正数）代表获取锁成功
+    return token
+end
+-- 判断是否是自己持有
+if (redis.call('hexists', key, threadId) == 1) then
+    -- 是自己的，重入次数+1，令牌不变
+    redis.call('hincrby', key, threadId, 1)
+    redis.call('pexpire', key, releaseTime)
+    return tonumber(redis.call('hget', key, 'fence'))
+end
+-- 被其他线程持有，返回锁的剩余有效期的相反数（负数）
+local ttl = redis.call('pttl', key)
+if (ttl < 1) then
+    ttl = 1
+end
+return -ttl
@@ -0,0 +1,32 @@
+-- 1、参数列表
+-- 1.1、验证码的key
+local codeKey = KEYS[1]
+-- 1.2、验证码错误次数的key
+local attemptsKey = KEYS[2]
+-- 1.3、用户提交的验证码
+local code = ARGV[1]
+-- 1.4、一个验证码最多允许错误的次数
+local maxAttempts = tonumber(ARGV[2])
+
+-- 2、验证码不存在或已过期
+local cacheCode = redis.call('get', codeKey)
+if (not cacheCode) then
+    return -1
+end
+-- 3、一致，删除验证码（只能使用一次），返回1
+if (cacheCode == code) then
+    redis.call('del', codeKey, attemptsKey)
+    return 1
+end
+-- 4、不一致，不删除验证码，累加错误次数，和验证码同时过期
+local attempts = redis.call('incr', attemptsKey)
+local ttl = redis.call('pttl', codeKey)
+if (attempts == 1 and ttl > 0) then
+    redis.call('pexpire', attemptsKey, ttl)
+end
+-- 5、错误次数达到上限，作废验证码，需要重新获取
+if (attempts >= maxAttempts) then
+    redis.call('del', codeKey, attemptsKey)
+    return -2
+end
+return 0
@@ -0,0 +1,11 @@
+-- 1、参数列表
+-- 1.1、token的key
+local tokenKey = KEYS[1]
+-- 1.2、token有效期（秒）
+local ttl = ARGV[1]
+
+-- 2、保存用户信息 hset tokenKey field1 value1 field2 value2 ...
+redis.call('hset', tokenKey, unpack(ARGV, 2))
+-- 3、设置token有效期
+redis.call('expire', tokenKey, ttl)
+return 1
@@ -0,0 +1,7 @@
+-- 判断锁是否仍然是自己持有
+if (redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    -- 续期
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 1
+end
+return 0
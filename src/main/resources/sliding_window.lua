@@ -0,0 +1,27 @@
+-- 滑动窗口限流，多个窗口同时满足才放行
+-- KEYS：每个窗口的key
+-- ARGV[1]：当前时间（毫秒）
+-- ARGV[2]：本次请求的唯一标识
+-- ARGV[3...]：每个窗口的 窗口大小（毫秒）、允许的次数，与KEYS一一对应
+local now = tonumber(ARGV[1])
+local member = ARGV[2]
+
+-- 1、先检查所有窗口
+for i = 1, #KEYS do
+    local window = tonumber(ARGV[i * 2 + 1])
+    local limit = tonumber(ARGV[i * 2 + 2])
+    -- 1.1、移除窗口之外的记录
+    redis.call('zremrangebyscore', KEYS[i], 0, now - window)
+    -- 1.2、窗口内的次数已达上限，返回被拒绝的窗口序号
+    if (redis.call('zcard', KEYS[i]) >= limit) then
+        return i
+    end
+end
+-- 2、全部满足，在所有窗口中记录本次请求
+for i = 1, #KEYS do
+    local window = tonumber(ARGV[i * 2 + 1])
+    redis.call('zadd', KEYS[i], now, member)
+    redis.call('pexpire', KEYS[i], window)
+end
+-- 3、返回0，放行
+return 0
@@ -1,8 +1,26 @@
--- 获取锁中的线程标识
-local id = redis.call('get', KEYS[1])
--- 比较线程标识与锁中的标识是否一致
-if (id == ARGV[1]) then
-    -- 释放锁 del key
-    return redis.call('del', KEYS[1])
+-- 锁的key
+local key = KEYS[1]
+-- 释放锁时发布消息的频道
+local channel = KEYS[2]
+-- 线程标识
+local threadId = ARGV[1]
+-- 锁持有的超时时间（毫秒）
+local releaseTime = ARGV[2]
+
+-- 判断锁是否是自己持有
+if (redis.call('hexists', key, threadId) == 0) then
+    -- 不是自己的，直接返回
+    return nil
 end
-return 0
+-- 是自己的锁，重入次数-1
+local count = redis.call('hincrby', key, threadId, -1)
+-- 判断重入次数是否已经为0
+if (count > 0) then
+    -- 大于0说明不能释放锁，重置有效期然后返回
+    redis.call('pexpire', key, releaseTime)
+    return 0
+end
+-- 等于0说明可以释放锁，直接删除，并通知等待的线程
+redis.call('del', key)
+redis.call('publish', channel, key)
+return 1
@@ -0,0 +1,14 @@
+-- 获取机器id的持有者
+local owner = redis.call('get', KEYS[1])
+-- 租约已过期，直接重新占用
+if (owner == false) then
+    redis.call('set', KEYS[1], ARGV[1], 'EX', ARGV[2])
+    return 1
+end
+-- 判断持有者是否是自己
+if (owner == ARGV[1]) then
+    -- 续期 expire key ttl
+    redis.call('expire', KEYS[1], ARGV[2])
+    return 1
+end
+return 0
@@ -3,14 +3,25 @@ package com.hmdp;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
+import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
 import com.hmdp.entity.Shop;
 import com.hmdp.entity.User;
+import com.hmdp.service.impl.BlogServiceImpl;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.service.impl.UserServiceImpl;
+import com.hmdp.utils.BlogCounter;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ILock;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisLockFactory;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.TwoLevelLock;
+import com.hmdp.utils.UserConverter;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
@@ -21,14 +32,20 @@ import javax.annotation.Resource;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 @SpringBootTest
@@ -49,25 +66,346 @@ class HmDianPingApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private BlogServiceImpl blogService;
+
+    @Resource
+    private RedisLockFactory redisLockFactory;
+
+    @Resource
+    private BlogCounter blogCounter;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
     @Test
     void testIdWorker() throws InterruptedException {
-        CountDownLatch latch = new CountDownLatch(300);
+        int threads = 300;
+        int perThread = 1000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet(threads * perThread);
+        CountDownLatch latch = new CountDownLatch(threads);
+        Runnable task = () -> {
+            for (int i = 0; i < perThread; i++) {
+                ids.add(redisIdWorker.nextId("order"));
+            }
+            latch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        long end = System.currentTimeMillis();
+        System.out.println("time = " + (end - begin));
+        // 多线程并发切换号段，所有id都不重复
+        Assertions.assertEquals(threads * perThread, ids.size());
+    }
+
+    @Test
+    void testSnowflakeIdWorker() throws InterruptedException {
+        int threads = 300;
+        int perThread = 10000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet(threads * perThread);
+        CountDownLatch latch = new CountDownLatch(threads);
         Runnable task = () -> {
-            for (int i = 0; i < 100; i++) {
-                long id = redisIdWorker.nextId("order");
-                System.out.println("id = " + id);
+            for (int i = 0; i < perThread; i++) {
+                ids.add(redisIdWorker.nextSnowflakeId());
             }
             latch.countDown();
         };
+        long legacyId = redisIdWorker.nextId("order");
         long begin = System.currentTimeMillis();
-        for (int i = 0; i < 300; i++) {
+        for (int i = 0; i < threads; i++) {
             es.submit(task);
         }
         latch.await();
         long end = System.currentTimeMillis();
         System.out.println("time = " + (end - begin));
+        System.out.println("ids/s = " + threads * perThread * 1000L / Math.max(end - begin, 1));
+        // 所有id都不重复
+        Assertions.assertEquals(threads * perThread, ids.size());
+        // 与 nextId 生成的订单id不重叠，并且排在之前发出的订单id之后
+        long minSnowflakeId = ids.stream().mapToLong(Long::longValue).min().getAsLong();
+        Assertions.assertTrue(minSnowflakeId > legacyId);
+        Assertions.assertTrue(minSnowflakeId > redisIdWorker.nextId("order"));
+    }
+
+    @Test
+    void testIdWorkerAllocation() {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        // 预热，让号段加载完成、JIT编译完成
+        for (int i = 0; i < 200000; i++) {
+            redisIdWorker.nextId("order");
+        }
+        int n = 100000;
+        // 提前分配好，计时期间不产生额外的分配
+        long[] ids = new long[n];
+        long beginBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        long begin = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            ids[i] = redisIdWorker.nextId("order");
+        }
+        long end = System.nanoTime();
+        long endBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        System.out.println("ns/op = " + (end - begin) / n);
+        System.out.println("bytes/op = " + (double) (endBytes - beginBytes) / n);
+
+        // 1、所有id都不重复
+        long[] seqs = new long[n];
+        for (int i = 0; i < n; i++) {
+            seqs[i] = ids[i] & 0xFFFFFFFFL;
+        }
+        Arrays.sort(seqs);
+        for (int i = 1; i < n; i++) {
+            Assertions.assertNotEquals(seqs[i - 1], seqs[i], "id重复");
+        }
+        // 2、号段按步长对齐 [k * step + 1, (k + 1) * step]，除了第一个和最后一个（预热和结束时只用了一部分），每个号段都要用完
+        long step = RedisConstants.ID_SEGMENT_STEP;
+        long firstSegment = (seqs[0] - 1) / step;
+        long lastSegment = (seqs[n - 1] - 1) / step;
+        int used = 0;
+        for (int i = 0; i < n; i++) {
+            long segment = (seqs[i] - 1) / step;
+            used++;
+            if (i == n - 1 || (seqs[i + 1] - 1) / step != segment) {
+                if (segment != firstSegment && segment != lastSegment) {
+                    Assertions.assertEquals(step, used, "号段" + segment + "没有用完");
+                }
+                used = 0;
+            }
+        }
+    }
+
+    @Test
+    void testTwoLevelLock() throws InterruptedException {
+        int threads = 100;
+        int rounds = 200;
+        long[] totalRedisOps = new long[2];
+        for (int mode = 0; mode < 2; mode++) {
+            boolean twoLevel = mode == 1;
+            AtomicLong redisOps = new AtomicLong();
+            AtomicLong acquired = new AtomicLong();
+            AtomicInteger holders = new AtomicInteger();
+            AtomicLong violations = new AtomicLong();
+            CountDownLatch latch = new CountDownLatch(threads);
+            Runnable task = () -> {
+                for (int i = 0; i < rounds; i++) {
+                    // 统计真正发到redis的加锁、解锁命令数
+                    ILock redisLock = new SimpleRedisLock("order:1", stringRedisTemplate) {
+                        @Override
+                        public boolean tryLock(long timeoutSec) {
+                            redisOps.incrementAndGet();
+                            return super.tryLock(timeoutSec);
+                        }
+
+                        @Override
+                        public void unlock() {
+                            redisOps.incrementAndGet();
+                            super.unlock();
+                        }
+                    };
+                    ILock lock = twoLevel ? new TwoLevelLock("order:1", redisLock) : redisLock;
+                    if (lock.tryLock(10)) {
+                        acquired.incrementAndGet();
+                        // 同一时刻只能有一个线程持有锁
+                        if (holders.incrementAndGet() != 1) {
+                            violations.incrementAndGet();
+                        }
+                        holders.decrementAndGet();
+                        lock.unlock();
+                    }
+                }
+                latch.countDown();
+            };
+            long begin = System.currentTimeMillis();
+            for (int i = 0; i < threads; i++) {
+                es.submit(task);
+            }
+            latch.await();
+            long end = System.currentTimeMillis();
+            System.out.println((twoLevel ? "two-level" : "redis-only") + ": time = " + (end - begin)
+                    + ", acquired = " + acquired.get() + ", redis ops = " + redisOps.get());
+            Assertions.assertEquals(0, violations.get(), "锁被多个线程同时持有");
+            Assertions.assertTrue(acquired.get() > 0);
+            totalRedisOps[mode] = redisOps.get();
+        }
+        // 本地锁挡住了同一个JVM中注定失败的竞争，redis命令数明显减少
+        Assertions.assertTrue(totalRedisOps[1] < totalRedisOps[0],
+                "two-level: " + totalRedisOps[1] + ", redis-only: " + totalRedisOps[0]);
+    }
+
+    @Test
+    void testLockFactory() throws InterruptedException {
+        int threads = 50;
+        int rounds = 100;
+        AtomicInteger holders = new AtomicInteger();
+        AtomicLong violations = new AtomicLong();
+        AtomicLong acquired = new AtomicLong();
+        CountDownLatch latch = new CountDownLatch(threads);
+        // 生产代码使用的锁：统计 -> 本地锁 -> redis锁，多线程等待获取同一把锁
+        Runnable task = () -> {
+            for (int i = 0; i < rounds; i++) {
+                ILock lock = redisLockFactory.getLock("test:factory");
+                try {
+                    if (!lock.tryLock(10, -1, TimeUnit.SECONDS)) {
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                try {
+                    acquired.incrementAndGet();
+                    if (holders.incrementAndGet() != 1) {
+                        violations.incrementAndGet();
+                    }
+                    holders.decrementAndGet();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            latch.countDown();
+        };
+        for (int i = 0; i < threads; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        Assertions.assertEquals(0, violations.get(), "锁被多个线程同时持有");
+        Assertions.assertEquals((long) threads * rounds, acquired.get());
+    }
+
+    @Test
+    void testLockWakeOnUnlock() throws Exception {
+        int rounds = 10;
+        long holdMillis = 200;
+        long totalWakeMillis = 0;
+        for (int round = 0; round < rounds; round++) {
+            ILock holder = redisLockFactory.getLock("test:wake");
+            ILock waiter = redisLockFactory.getLock("test:wake");
+            CountDownLatch locked = new CountDownLatch(1);
+            AtomicLong releasedAt = new AtomicLong();
+            // 锁属于获取它的线程，持有和释放都在同一个线程里
+            es.submit(() -> {
+                try {
+                    if (!holder.tryLock(0, -1, TimeUnit.SECONDS)) {
+                        return;
+                    }
+                    locked.countDown();
+                    Thread.sleep(holdMillis);
+                    releasedAt.set(System.nanoTime());
+                    holder.unlock();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Assertions.assertTrue(locked.await(5, TimeUnit.SECONDS));
+            // 看门狗锁的有效期是30秒，等待线程只能靠释放消息及时醒来
+            boolean acquired = waiter.tryLock(10, -1, TimeUnit.SECONDS);
+            long acquiredAt = System.nanoTime();
+            Assertions.assertTrue(acquired);
+            waiter.unlock();
+            totalWakeMillis += TimeUnit.NANOSECONDS.toMillis(acquiredAt - releasedAt.get());
+        }
+        long avgWakeMillis = totalWakeMillis / rounds;
+        System.out.println("avg wake ms = " + avgWakeMillis);
+        // 轮询间隔是100毫秒，平均唤醒延迟明显小于轮询间隔的一半，说明是被释放消息唤醒的
+        Assertions.assertTrue(avgWakeMillis < RedisConstants.LOCK_POLL_INTERVAL / 4,
+                "平均唤醒延迟：" + avgWakeMillis + "ms");
+    }
+
+    @Test
+    void testUserConverter() {
+        User user = new User();
+        user.setId(1010L);
+        user.setNickName("user_abc");
+        user.setIcon("/imgs/icons/user1.jpg");
+        user.setPhone("13686869696");
+        Map<Object, Object> hash = new HashMap<>(UserConverter.toMap(UserConverter.toDTO(user)));
+        // 结果必须与BeanUtil一致
+        UserDTO expected = BeanUtil.copyProperties(user, UserDTO.class);
+        Assertions.assertEquals(expected, UserConverter.toDTO(user));
+        Assertions.assertEquals(expected, UserConverter.fromMap(hash));
+        Assertions.assertEquals(expected, BeanUtil.fillBeanWithMap(hash, new UserDTO(), false));
+
+        int n = 1000000;
+        // 每轮先预热再计时，两种实现交替执行
+        for (int round = 0; round < 2; round++) {
+            long begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
+                BeanUtil.beanToMap(userDTO, new HashMap<>(), CopyOptions.create()
+                        .setIgnoreNullValue(true)
+                        .setFieldValueEditor((fieldName, fieldValue) -> fieldValue.toString()));
+                BeanUtil.fillBeanWithMap(hash, new UserDTO(), false);
+            }
+            long hutool = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                UserDTO userDTO = UserConverter.toDTO(user);
+                UserConverter.toMap(userDTO);
+                UserConverter.fromMap(hash);
+            }
+            long handwritten = System.nanoTime() - begin;
+            System.out.println("round " + round + ": hutool ns/op = " + hutool / n
+                    + ", handwritten ns/op = " + handwritten / n);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testBlogHydration() {
+        UserDTO me = new UserDTO();
+        me.setId(1010L);
+        UserHolder.saveUser(me);
+        try {
+            // 1、调用真实的热门笔记接口：排行榜 + 笔记缓存 + hydrateBlogs
+            Result result = blogService.queryHotBlog(1);
+            Assertions.assertTrue(result.getSuccess());
+            List<Blog> page = (List<Blog>) result.getData();
+            Assertions.assertFalse(page.isEmpty(), "热门排行榜为空，先准备笔记数据");
+            // 2、校验填充结果：作者、点赞数（数据库 + 未落库增量）、评论数（数据库 + 未落库增量）、点赞状态
+            List<Long> ids = page.stream().map(Blog::getId).collect(Collectors.toList());
+            Map<Long, Blog> db = blogService.listByIds(ids).stream().collect(Collectors.toMap(Blog::getId, b -> b));
+            Map<Long, Long> pendingLikes = blogCounter.pendingLikes(ids);
+            Map<Long, Long> pendingComments = blogCounter.pendingComments(ids);
+            for (Blog blog : page) {
+                Blog row = db.get(blog.getId());
+                Assertions.assertNotNull(blog.getName(), "作者未填充：" + blog.getId());
+                long liked = row.getLiked() == null ? 0 : row.getLiked();
+                long comments = row.getComments() == null ? 0 : row.getComments();
+                Assertions.assertEquals(liked + pendingLikes.getOrDefault(blog.getId(), 0L),
+                        blog.getLiked().longValue(), "点赞数：" + blog.getId());
+                Assertions.assertEquals(comments + pendingComments.getOrDefault(blog.getId(), 0L),
+                        blog.getComments().longValue(), "评论数：" + blog.getId());
+                Double score = stringRedisTemplate.opsForZSet()
+                        .score(RedisConstants.BLOG_LIKED_KEY + blog.getId(), me.getId().toString());
+                Assertions.assertEquals(score != null, blog.getIsLike(), "点赞状态：" + blog.getId());
+            }
+            int rounds = 200;
+            for (int round = 0; round < 2; round++) {
+                // 3、对照：逐条查询，每篇blog一次数据库查询作者、一次zscore
+                long begin = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    for (Blog blog : page) {
+                        userService.getById(blog.getUserId());
+                        stringRedisTemplate.opsForZSet().score(RedisConstants.BLOG_LIKED_KEY + blog.getId(), me.getId().toString());
+                    }
+                }
+                long perBlog = System.nanoTime() - begin;
+                // 4、生产代码：整页查询热门笔记
+                begin = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    blogService.queryHotBlog(1);
+                }
+                long service = System.nanoTime() - begin;
+                System.out.println("round " + round + ": blogs = " + page.size()
+                        + ", per-blog us/page = " + perBlog / rounds / 1000
+                        + ", queryHotBlog us/page = " + service / rounds / 1000);
+            }
+        } finally {
+            UserHolder.removeUser();
+        }
     }
 
     @Test